@@ -0,0 +1,93 @@
+package org.esa.snap.dos.benchmark;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.snap.core.datamodel.Band;
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.dos.DarkObjectSubtractionOp;
+import org.esa.snap.dos.SensorConstants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.media.jai.JAI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the statistics pass over all 13 bands of a synthetic Sentinel-2 product. The operator is executed
+ * without requesting any target tile, so only its initialisation and the statistics are measured.
+ *
+ * @author olafd
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8G")
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class DarkObjectStatisticsBenchmark {
+
+    @Param({"10980"})
+    public int size;
+
+    @Param({"1", "4", "0"})
+    public int threads;
+
+    @Param({"", "B8 > 0.2"})
+    public String maskExpression;
+
+    @Param({"HISTOGRAM", "QUANTILE_SKETCH"})
+    public String statisticsMethod;
+
+    private Product product;
+    private long pixelCount;
+
+    @Setup
+    public void setUp() throws Exception {
+        product = SyntheticProductGenerator.createProduct(size);
+        for (Band band : product.getBands()) {
+            pixelCount += (long) band.getRasterWidth() * band.getRasterHeight();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        product.dispose();
+    }
+
+    @TearDown(Level.Invocation)
+    public void flushTileCache() {
+        // source tiles may not be reused by the next invocation
+        JAI.getDefaultInstance().getTileCache().flush();
+    }
+
+    @Benchmark
+    public void statistics(PixelThroughput throughput) {
+        final DarkObjectSubtractionOp operator = new DarkObjectSubtractionOp();
+        operator.setSourceProduct(product);
+        operator.setParameter("sourceBandNames", SensorConstants.S2_MSI_SPECTRAL_BANDS);
+        operator.setParameter("histogramMinimumPercentile", 0.01);
+        operator.setParameter("parallelism", threads);
+        operator.setParameter("statisticsMethod", statisticsMethod);
+        if (!maskExpression.isEmpty()) {
+            operator.setParameter("maskExpression", maskExpression);
+        }
+        final Product targetProduct = operator.getTargetProduct();
+        try {
+            // computes the dark object values only
+            operator.execute(ProgressMonitor.NULL);
+            throughput.add(pixelCount);
+        } finally {
+            targetProduct.dispose();
+        }
+    }
+}
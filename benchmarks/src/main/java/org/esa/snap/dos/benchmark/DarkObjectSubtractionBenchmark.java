@@ -0,0 +1,95 @@
+package org.esa.snap.dos.benchmark;
+
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.gpf.GPF;
+import org.esa.snap.dos.DarkObjectSubtractionOp;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.media.jai.JAI;
+import java.awt.image.RenderedImage;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Benchmark of the subtraction, applied to all tiles of one band of a synthetic Sentinel-2 product, with float32
+ * and with scaled uint16 output. The dark object value is computed once during the setup, so each invocation only
+ * computes the target tiles.
+ *
+ * @author olafd
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8G")
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class DarkObjectSubtractionBenchmark {
+
+    @Param({"10980"})
+    public int size;
+
+    @Param({"1", "4", "0"})
+    public int threads;
+
+    @Param({"float32", "uint16"})
+    public String outputType;
+
+    private Product sourceProduct;
+    private Product targetProduct;
+    private RenderedImage targetImage;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setUp() throws Exception {
+        GPF.getDefaultInstance().getOperatorSpiRegistry().addOperatorSpi(new DarkObjectSubtractionOp.Spi());
+        sourceProduct = SyntheticProductGenerator.createProduct(size);
+        final Map<String, Object> parameters = new HashMap<>();
+        parameters.put("sourceBandNames", new String[]{"B8"});
+        parameters.put("histogramMinimumPercentile", 0.01);
+        parameters.put("outputDataType", outputType);
+        // required for uint16, and the same for float32 so both outputs do the same work
+        parameters.put("clampNegativeValues", true);
+        targetProduct = GPF.createProduct("Snap.DarkObjectSubtraction", parameters, sourceProduct);
+        targetImage = targetProduct.getBand("B8").getSourceImage();
+        // the first tile request computes the dark object value
+        targetImage.getTile(0, 0);
+        pool = new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+        targetProduct.dispose();
+        sourceProduct.dispose();
+    }
+
+    @TearDown(Level.Invocation)
+    public void flushTileCache() {
+        // neither source nor target tiles may be reused by the next invocation
+        JAI.getDefaultInstance().getTileCache().flush();
+    }
+
+    @Benchmark
+    public void subtraction(PixelThroughput throughput) throws Exception {
+        final int numXTiles = targetImage.getNumXTiles();
+        final int numTiles = numXTiles * targetImage.getNumYTiles();
+        pool.submit(() -> IntStream.range(0, numTiles).parallel().forEach(
+                tileIndex -> targetImage.getTile(tileIndex % numXTiles, tileIndex / numXTiles))).get();
+        throughput.add((long) targetImage.getWidth() * targetImage.getHeight());
+    }
+}
@@ -0,0 +1,98 @@
+package org.esa.snap.dos.benchmark;
+
+import org.esa.snap.core.datamodel.Band;
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.gpf.GPF;
+import org.esa.snap.dos.DarkObjectSubtractionOp;
+import org.esa.snap.dos.SensorConstants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.media.jai.JAI;
+import java.awt.image.RenderedImage;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * End-to-end benchmark of the operator on a synthetic Sentinel-2 product: initialisation, statistics of all
+ * 13 bands and computation of all target tiles (without writing them).
+ *
+ * @author olafd
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8G")
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class DarkObjectSubtractionOpBenchmark {
+
+    @Param({"10980"})
+    public int size;
+
+    @Param({"1", "4", "0"})
+    public int threads;
+
+    @Param({"", "B8 > 0.2"})
+    public String maskExpression;
+
+    private Product sourceProduct;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setUp() throws Exception {
+        GPF.getDefaultInstance().getOperatorSpiRegistry().addOperatorSpi(new DarkObjectSubtractionOp.Spi());
+        sourceProduct = SyntheticProductGenerator.createProduct(size);
+        pool = new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+        sourceProduct.dispose();
+    }
+
+    @TearDown(Level.Invocation)
+    public void flushTileCache() {
+        // neither source nor target tiles may be reused by the next invocation
+        JAI.getDefaultInstance().getTileCache().flush();
+    }
+
+    @Benchmark
+    public void operator(PixelThroughput throughput) throws Exception {
+        final Map<String, Object> parameters = new HashMap<>();
+        parameters.put("sourceBandNames", SensorConstants.S2_MSI_SPECTRAL_BANDS);
+        parameters.put("histogramMinimumPercentile", 0.01);
+        parameters.put("parallelism", threads);
+        if (!maskExpression.isEmpty()) {
+            parameters.put("maskExpression", maskExpression);
+        }
+        final Product targetProduct = GPF.createProduct("Snap.DarkObjectSubtraction", parameters, sourceProduct);
+        try {
+            for (Band targetBand : targetProduct.getBands()) {
+                final RenderedImage image = targetBand.getSourceImage();
+                final int numXTiles = image.getNumXTiles();
+                final int numTiles = numXTiles * image.getNumYTiles();
+                pool.submit(() -> IntStream.range(0, numTiles).parallel().forEach(
+                        tileIndex -> image.getTile(tileIndex % numXTiles, tileIndex / numXTiles))).get();
+                throughput.add((long) targetBand.getRasterWidth() * targetBand.getRasterHeight());
+            }
+        } finally {
+            targetProduct.dispose();
+        }
+    }
+}
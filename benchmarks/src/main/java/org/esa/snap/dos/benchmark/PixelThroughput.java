@@ -0,0 +1,29 @@
+package org.esa.snap.dos.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Auxiliary JMH counter of the processed megapixels. In throughput mode JMH reports it as megapixels per second,
+ * next to the rate of the benchmark operations themselves.
+ *
+ * @author olafd
+ */
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+@State(Scope.Thread)
+public class PixelThroughput {
+
+    public double megapixels;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        megapixels = 0;
+    }
+
+    void add(long pixels) {
+        megapixels += pixels / 1.0E6;
+    }
+}
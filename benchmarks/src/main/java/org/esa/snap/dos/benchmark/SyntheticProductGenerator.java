@@ -0,0 +1,116 @@
+package org.esa.snap.dos.benchmark;
+
+import org.esa.snap.core.datamodel.Band;
+import org.esa.snap.core.datamodel.CrsGeoCoding;
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.datamodel.ProductData;
+import org.esa.snap.core.image.ResolutionLevel;
+import org.esa.snap.core.image.SingleBandedOpImage;
+import org.esa.snap.dos.SensorConstants;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+
+import javax.media.jai.PlanarImage;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+
+/**
+ * Generates synthetic products resembling Sentinel-2 MSI L1C tiles: 13 uint16 bands at their native 10, 20 and
+ * 60 m resolution, with a scaling factor of 1.0E-4, a no-data value of 0 and slanted no-data borders as at the edge
+ * of a swath.
+ * <p>
+ * The pixels are computed on request from a small noise table, so even products of 10980 x 10980 pixels need
+ * hardly any memory and generating a tile is cheap compared to the processing which is measured.
+ *
+ * @author olafd
+ */
+class SyntheticProductGenerator {
+
+    static final int S2_SIZE = 10980;
+    static final int TILE_SIZE = 512;
+
+    private static final int S2_MIN_RESOLUTION = 10;
+
+    private static final float[] S2_WAVELENGTHS = {
+            443, 490, 560, 665, 705, 740, 783, 842, 865, 945, 1375, 1610, 2190
+    };
+
+    private static final int NOISE_SIZE = 256;
+
+    private SyntheticProductGenerator() {
+    }
+
+    /**
+     * @param size the width and height of the product (and of its 10 m bands) in pixels; the 20 m and 60 m bands
+     *             have a half and a sixth of it, e.g. 5490 and 1830 pixels for 10980
+     *
+     * @return the product with the bands named as in {@link SensorConstants#S2_MSI_SPECTRAL_BANDS}
+     *
+     * @throws Exception if the geo-coding cannot be created
+     */
+    static Product createProduct(int size) throws Exception {
+        final Product product = new Product("S2_MSI_synthetic", "S2_MSI_Level-1C", size, size);
+        product.setSceneGeoCoding(new CrsGeoCoding(DefaultGeographicCRS.WGS84, size, size, 10.0, 50.0, 1.0E-4, 1.0E-4));
+        product.setPreferredTileSize(TILE_SIZE, TILE_SIZE);
+        final String[] bandNames = SensorConstants.S2_MSI_SPECTRAL_BANDS;
+        final int[] resolutions = SensorConstants.S2_MSI_SPECTRAL_BAND_RESOLUTIONS;
+        for (int i = 0; i < bandNames.length; i++) {
+            final int scale = resolutions[i] / S2_MIN_RESOLUTION;
+            final int bandSize = size / scale;
+            final Band band = new Band(bandNames[i], ProductData.TYPE_UINT16, bandSize, bandSize);
+            band.setGeoCoding(new CrsGeoCoding(DefaultGeographicCRS.WGS84, bandSize, bandSize, 10.0, 50.0,
+                                               scale * 1.0E-4, scale * 1.0E-4));
+            band.setSpectralWavelength(S2_WAVELENGTHS[i]);
+            band.setSpectralBandIndex(i);
+            band.setScalingFactor(1.0E-4);
+            band.setNoDataValue(0);
+            band.setNoDataValueUsed(true);
+            band.setSourceImage(new SyntheticImage(bandSize, i));
+            product.addBand(band);
+        }
+        return product;
+    }
+
+    private static class SyntheticImage extends SingleBandedOpImage {
+
+        private final int size;
+        private final int bandIndex;
+        private final short[] noise;
+
+        SyntheticImage(int size, int bandIndex) {
+            super(DataBuffer.TYPE_USHORT, size, size, new Dimension(TILE_SIZE, TILE_SIZE), null,
+                  ResolutionLevel.MAXRES);
+            this.size = size;
+            this.bandIndex = bandIndex;
+            // the darkest pixels of each band are a few hundred counts above zero, as for a real path radiance
+            final int darkObjectOffset = 150 + 20 * bandIndex;
+            final Random random = new Random(bandIndex);
+            this.noise = new short[NOISE_SIZE * NOISE_SIZE];
+            for (int i = 0; i < noise.length; i++) {
+                noise[i] = (short) (darkObjectOffset + random.nextInt(4000));
+            }
+        }
+
+        @Override
+        protected void computeRect(PlanarImage[] sources, WritableRaster dest, Rectangle destRect) {
+            final short[] line = new short[destRect.width];
+            for (int y = destRect.y; y < destRect.y + destRect.height; y++) {
+                final int noiseRow = ((y + 31 * bandIndex) % NOISE_SIZE) * NOISE_SIZE;
+                for (int i = 0; i < line.length; i++) {
+                    line[i] = noise[noiseRow + (destRect.x + i) % NOISE_SIZE];
+                }
+                // slanted no-data borders, about 10% of the width at the top, none at the bottom
+                final int border = (int) (0.1 * size * (size - y) / size);
+                for (int x = destRect.x; x < Math.min(destRect.x + destRect.width, border); x++) {
+                    line[x - destRect.x] = 0;
+                }
+                for (int x = Math.max(destRect.x, size - border); x < destRect.x + destRect.width; x++) {
+                    line[x - destRect.x] = 0;
+                }
+                dest.setDataElements(destRect.x, y, destRect.width, 1, line);
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.esa.snap.dos;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+
+/**
+ * Accumulates the samples of one band which are needed to find its dark object value. Accumulators are filled
+ * tile by tile, and partial accumulators filled by different workers can be merged.
+ *
+ * @author olafd
+ */
+interface DarkObjectAccumulator {
+
+    /**
+     * Adds the samples of the given raster within the given rectangle.
+     *
+     * @param raster     the raster providing the samples
+     * @param rect       the rectangle, must be contained in the raster
+     * @param validMask  flags for the pixels of the rectangle in row-major order, only pixels with a flag set are
+     *                   added; {@code null} if all pixels shall be added
+     */
+    void accumulate(Raster raster, Rectangle rect, boolean[] validMask);
+
+    /**
+     * Merges another accumulator of the same kind into this one.
+     *
+     * @param other the other accumulator
+     */
+    void merge(DarkObjectAccumulator other);
+
+    /**
+     * @param percentile the percentile in percent (0..100)
+     *
+     * @return the sample value below which the given percentage of all accumulated samples lies
+     */
+    double getValueAtPercentile(double percentile);
+
+    /**
+     * @return the number of accumulated samples
+     */
+    long getCount();
+
+    /**
+     * @return an upper bound of the memory in bytes held by this accumulator, not counting the scratch buffer
+     * used by {@link #accumulate}
+     */
+    long getMaxMemorySize();
+
+    /**
+     * Releases the scratch buffer kept between calls of {@link #accumulate}, e.g. if the accumulator will not be
+     * used for a while.
+     */
+    void releaseBuffers();
+}
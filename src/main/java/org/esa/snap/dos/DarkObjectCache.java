@@ -0,0 +1,237 @@
+package org.esa.snap.dos;
+
+import org.esa.snap.core.util.SystemUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+
+/**
+ * Persistent on-disk cache of dark object values.
+ * <p>
+ * Each entry is stored in a small properties file named after the SHA-1 hash of its key. Entries are written to
+ * a temporary file first and then atomically moved into place, so concurrent processes never read partially
+ * written entries. The number of entries is bounded; the least recently used entries (by file modification time,
+ * which is updated on every hit) are evicted while holding an exclusive file lock on the cache directory.
+ * Temporary files left behind by processes which died while writing an entry are removed at the same time.
+ * <p>
+ * The cache is only an optimisation: any I/O problem is logged and treated as a cache miss.
+ *
+ * @author olafd
+ */
+public class DarkObjectCache {
+
+    private static final String ENTRY_SUFFIX = ".properties";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // temporary files younger than this may still be written by another process
+    private static final long TEMP_FILE_MAX_AGE_MILLIS = 60 * 60 * 1000L;
+    private static final String LOCK_FILE_NAME = ".lock";
+
+    private static final String KEY_PROPERTY = "key";
+    private static final String VALUE_PROPERTY = "darkObjectValue";
+    private static final String SAMPLING_ERROR_PROPERTY = "samplingError";
+
+    private final Path directory;
+    private final int maxEntries;
+
+    /**
+     * @param directory  the cache directory, created if it does not exist
+     * @param maxEntries the maximum number of entries
+     */
+    public DarkObjectCache(File directory, int maxEntries) {
+        this.directory = directory.toPath();
+        this.maxEntries = Math.max(1, maxEntries);
+    }
+
+    /**
+     * Creates the key of a cache entry. The product file is identified by its canonical path, size and
+     * modification time, so a changed file never matches an old entry.
+     *
+     * @param productFile    the file of the source product
+     * @param bandName       the name of the band
+     * @param maskExpression the mask expression for the dark object search area, may be {@code null}
+     * @param settings       any further settings the dark object value depends on, e.g. the percentile
+     *
+     * @return the key
+     *
+     * @throws IOException if the file attributes cannot be read
+     */
+    public static String createKey(File productFile, String bandName, String maskExpression, String settings)
+            throws IOException {
+        final Path path = productFile.toPath().toRealPath();
+        return path + "|" + Files.size(path) + "|" + Files.getLastModifiedTime(path).toMillis() + "|" +
+                bandName + "|" + (maskExpression != null ? maskExpression : "") + "|" + settings;
+    }
+
+    /**
+     * @param key the key
+     *
+     * @return the cached entry, or {@code null} if there is none
+     */
+    public Entry get(String key) {
+        final Path entryPath = getEntryPath(key);
+        if (!Files.isRegularFile(entryPath)) {
+            return null;
+        }
+        try {
+            final Properties properties = new Properties();
+            try (InputStream inputStream = Files.newInputStream(entryPath)) {
+                properties.load(inputStream);
+            }
+            if (!key.equals(properties.getProperty(KEY_PROPERTY))) {
+                return null;
+            }
+            final Entry entry = new Entry(Double.parseDouble(properties.getProperty(VALUE_PROPERTY)),
+                                          Double.parseDouble(properties.getProperty(SAMPLING_ERROR_PROPERTY, "NaN")));
+            // mark as recently used
+            Files.setLastModifiedTime(entryPath, FileTime.fromMillis(System.currentTimeMillis()));
+            return entry;
+        } catch (NoSuchFileException e) {
+            // evicted by another process in the meantime
+            return null;
+        } catch (IOException | RuntimeException e) {
+            SystemUtils.LOG.log(Level.WARNING, "Unable to read dark object cache entry " + entryPath, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores an entry and evicts the least recently used entries if the cache has grown too large.
+     *
+     * @param key             the key
+     * @param darkObjectValue the dark object value
+     * @param samplingError   the estimated sampling error, NaN if not sampled
+     */
+    public void put(String key, double darkObjectValue, double samplingError) {
+        try {
+            Files.createDirectories(directory);
+            final Properties properties = new Properties();
+            properties.setProperty(KEY_PROPERTY, key);
+            properties.setProperty(VALUE_PROPERTY, Double.toString(darkObjectValue));
+            properties.setProperty(SAMPLING_ERROR_PROPERTY, Double.toString(samplingError));
+
+            final Path tempPath = Files.createTempFile(directory, "entry", TEMP_SUFFIX);
+            try {
+                try (OutputStream outputStream = Files.newOutputStream(tempPath)) {
+                    properties.store(outputStream, null);
+                }
+                try {
+                    Files.move(tempPath, getEntryPath(key), StandardCopyOption.ATOMIC_MOVE,
+                               StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tempPath, getEntryPath(key), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tempPath);
+            }
+            evictEntries();
+        } catch (IOException e) {
+            SystemUtils.LOG.log(Level.WARNING, "Unable to write dark object cache entry to " + directory, e);
+        }
+    }
+
+    private void evictEntries() throws IOException {
+        // the file lock excludes other processes, the monitor other threads of this process
+        synchronized (DarkObjectCache.class) {
+            evictEntriesLocked();
+        }
+    }
+
+    private void evictEntriesLocked() throws IOException {
+        final Path lockPath = directory.resolve(LOCK_FILE_NAME);
+        try (FileChannel channel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock ignored = channel.lock()) {
+            deleteAbandonedTempFiles();
+            final List<Path> entryPaths = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + ENTRY_SUFFIX)) {
+                for (Path entryPath : stream) {
+                    entryPaths.add(entryPath);
+                }
+            }
+            if (entryPaths.size() <= maxEntries) {
+                return;
+            }
+            final List<long[]> lastModified = new ArrayList<>();
+            for (int i = 0; i < entryPaths.size(); i++) {
+                try {
+                    lastModified.add(new long[]{Files.getLastModifiedTime(entryPaths.get(i)).toMillis(), i});
+                } catch (NoSuchFileException e) {
+                    // already evicted
+                }
+            }
+            lastModified.sort((e1, e2) -> Long.compare(e1[0], e2[0]));
+            for (int i = 0; i < lastModified.size() - maxEntries; i++) {
+                Files.deleteIfExists(entryPaths.get((int) lastModified.get(i)[1]));
+            }
+        }
+    }
+
+    private void deleteAbandonedTempFiles() throws IOException {
+        final long minLastModified = System.currentTimeMillis() - TEMP_FILE_MAX_AGE_MILLIS;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + TEMP_SUFFIX)) {
+            for (Path tempPath : stream) {
+                try {
+                    if (Files.getLastModifiedTime(tempPath).toMillis() < minLastModified) {
+                        Files.deleteIfExists(tempPath);
+                    }
+                } catch (NoSuchFileException e) {
+                    // moved into place or deleted in the meantime
+                }
+            }
+        }
+    }
+
+    private Path getEntryPath(String key) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            final byte[] hash = digest.digest(key.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder name = new StringBuilder();
+            for (byte b : hash) {
+                name.append(String.format("%02x", b));
+            }
+            return directory.resolve(name + ENTRY_SUFFIX);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A cached dark object value.
+     */
+    public static class Entry {
+
+        private final double darkObjectValue;
+        private final double samplingError;
+
+        Entry(double darkObjectValue, double samplingError) {
+            this.darkObjectValue = darkObjectValue;
+            this.samplingError = samplingError;
+        }
+
+        public double getDarkObjectValue() {
+            return darkObjectValue;
+        }
+
+        public double getSamplingError() {
+            return samplingError;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.esa.snap.dos;
+
+import java.util.Arrays;
+
+/**
+ * A spatially varying dark object value of one band, given on a coarse grid of square windows and interpolated
+ * bilinearly between the window centres. Outside the outermost window centres the values are extended constantly.
+ * <p>
+ * Windows without any valid sample (e.g. over no-data areas) are filled from their valid neighbours, repeatedly,
+ * so that the surface stays smooth. If no window has a valid sample, the given fallback value is used everywhere.
+ *
+ * @author olafd
+ */
+class DarkObjectGrid {
+
+    private final int numWindowsX;
+    private final int numWindowsY;
+    private final double windowSize;
+    private final double[] values;
+
+    /**
+     * @param numWindowsX   the number of windows in x direction
+     * @param numWindowsY   the number of windows in y direction
+     * @param windowSize    the window size in pixels of the band
+     * @param values        the dark object values of the windows in row-major order, NaN for windows without
+     *                      valid samples
+     * @param fallbackValue the value used if no window has a valid sample
+     */
+    DarkObjectGrid(int numWindowsX, int numWindowsY, double windowSize, double[] values, double fallbackValue) {
+        if (values.length != numWindowsX * numWindowsY) {
+            throw new IllegalArgumentException("Expected " + numWindowsX * numWindowsY + " window values, got " +
+                                                       values.length);
+        }
+        this.numWindowsX = numWindowsX;
+        this.numWindowsY = numWindowsY;
+        this.windowSize = windowSize;
+        this.values = values.clone();
+        fillHoles(fallbackValue);
+    }
+
+    /**
+     * @param value the dark object value
+     *
+     * @return a grid with the same value everywhere
+     */
+    static DarkObjectGrid constant(double value) {
+        return new DarkObjectGrid(1, 1, 1.0, new double[]{value}, value);
+    }
+
+    int getNumWindowsX() {
+        return numWindowsX;
+    }
+
+    int getNumWindowsY() {
+        return numWindowsY;
+    }
+
+    /**
+     * @return the window values in row-major order, with the holes filled
+     */
+    double[] getValues() {
+        return values.clone();
+    }
+
+    /**
+     * @param x the pixel x coordinate
+     * @param y the pixel y coordinate
+     *
+     * @return the interpolated dark object value at the centre of the pixel
+     */
+    double getValue(int x, int y) {
+        final double gy = clamp((y + 0.5) / windowSize - 0.5, numWindowsY);
+        final int y0 = Math.min((int) gy, numWindowsY - 1);
+        final int y1 = Math.min(y0 + 1, numWindowsY - 1);
+        final double wy = gy - y0;
+        final double gx = clamp((x + 0.5) / windowSize - 0.5, numWindowsX);
+        final int x0 = Math.min((int) gx, numWindowsX - 1);
+        final int x1 = Math.min(x0 + 1, numWindowsX - 1);
+        final double wx = gx - x0;
+        final double top = (1.0 - wx) * values[y0 * numWindowsX + x0] + wx * values[y0 * numWindowsX + x1];
+        final double bottom = (1.0 - wx) * values[y1 * numWindowsX + x0] + wx * values[y1 * numWindowsX + x1];
+        return (1.0 - wy) * top + wy * bottom;
+    }
+
+    /**
+     * Interpolates the dark object values of a run of pixels in one row. The vertical interpolation is done once
+     * per window column, so this is much cheaper than calling {@link #getValue} for each pixel.
+     *
+     * @param y            the pixel y coordinate
+     * @param minX         the x coordinate of the first pixel
+     * @param row          receives the values, one per pixel
+     * @param columnValues scratch buffer of at least {@link #getNumWindowsX()} elements, reused between rows
+     */
+    void getRow(int y, int minX, double[] row, double[] columnValues) {
+        if (values.length == 1) {
+            Arrays.fill(row, values[0]);
+            return;
+        }
+        final double gy = clamp((y + 0.5) / windowSize - 0.5, numWindowsY);
+        final int y0 = Math.min((int) gy, numWindowsY - 1);
+        final int y1 = Math.min(y0 + 1, numWindowsY - 1);
+        final double wy = gy - y0;
+        for (int i = 0; i < numWindowsX; i++) {
+            columnValues[i] = (1.0 - wy) * values[y0 * numWindowsX + i] + wy * values[y1 * numWindowsX + i];
+        }
+        for (int i = 0; i < row.length; i++) {
+            final double gx = clamp((minX + i + 0.5) / windowSize - 0.5, numWindowsX);
+            final int x0 = Math.min((int) gx, numWindowsX - 1);
+            final int x1 = Math.min(x0 + 1, numWindowsX - 1);
+            final double wx = gx - x0;
+            row[i] = (1.0 - wx) * columnValues[x0] + wx * columnValues[x1];
+        }
+    }
+
+    private static double clamp(double gridCoordinate, int numWindows) {
+        return Math.max(0.0, Math.min(gridCoordinate, numWindows - 1));
+    }
+
+    private void fillHoles(double fallbackValue) {
+        boolean anyValid = false;
+        for (double value : values) {
+            anyValid |= !Double.isNaN(value);
+        }
+        if (!anyValid) {
+            Arrays.fill(values, fallbackValue);
+            return;
+        }
+        // each sweep fills the holes next to valid windows with the mean of their valid 8-neighbours
+        boolean anyHole = true;
+        while (anyHole) {
+            anyHole = false;
+            final double[] filled = values.clone();
+            for (int j = 0; j < numWindowsY; j++) {
+                for (int i = 0; i < numWindowsX; i++) {
+                    if (Double.isNaN(values[j * numWindowsX + i])) {
+                        filled[j * numWindowsX + i] = getNeighbourMean(i, j);
+                        anyHole |= Double.isNaN(filled[j * numWindowsX + i]);
+                    }
+                }
+            }
+            System.arraycopy(filled, 0, values, 0, values.length);
+        }
+    }
+
+    private double getNeighbourMean(int i, int j) {
+        double sum = 0.0;
+        int count = 0;
+        for (int nj = Math.max(0, j - 1); nj <= Math.min(numWindowsY - 1, j + 1); nj++) {
+            for (int ni = Math.max(0, i - 1); ni <= Math.min(numWindowsX - 1, i + 1); ni++) {
+                final double value = values[nj * numWindowsX + ni];
+                if (!Double.isNaN(value)) {
+                    sum += value;
+                    count++;
+                }
+            }
+        }
+        return count > 0 ? sum / count : Double.NaN;
+    }
+}
@@ -0,0 +1,213 @@
+package org.esa.snap.dos;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+
+/**
+ * Histogram for the lower-tail statistics of a single band, filled in one pass without a prior min/max pass.
+ * <p>
+ * The bin width is always a power of two and bin borders are aligned to multiples of the bin width. If new values
+ * exceed the current range, the bin width is doubled (merging adjacent bins exactly) until all values fit into the
+ * given number of bins. The resulting bin layout only depends on the overall minimum and maximum, not on the order in
+ * which values or partial histograms are added, so partial histograms can be merged without loss.
+ * <p>
+ * Since the power-of-two bin width can be up to twice the width needed for the value range, the default bin count
+ * is twice the bin count of {@link org.esa.snap.core.datamodel.Stx}. The bins are thus never coarser than the ones
+ * of the Stx histogram used by {@code DarkObjectSubtractionOp.getHistogramMinAtPercentile}.
+ *
+ * @author olafd
+ */
+public class DarkObjectHistogram implements DarkObjectAccumulator {
+
+    static final int DEFAULT_BIN_COUNT = 1024;
+
+    private static final int MIN_BIN_WIDTH_EXPONENT = -32;
+
+    private final int binCount;
+    private long[] bins;
+    private int binWidthExponent;
+    private double originIndex;
+    private double minimum;
+    private double maximum;
+    private long count;
+    private double[] samples;
+
+    public DarkObjectHistogram() {
+        this(DEFAULT_BIN_COUNT);
+    }
+
+    public DarkObjectHistogram(int binCount) {
+        if (binCount < 2) {
+            throw new IllegalArgumentException("binCount < 2");
+        }
+        this.binCount = binCount;
+        this.minimum = Double.POSITIVE_INFINITY;
+        this.maximum = Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Adds the first {@code length} values of the given array. NaN and infinite values are ignored.
+     *
+     * @param values the values
+     * @param length the number of values to add
+     */
+    public void accumulate(double[] values, int length) {
+        double batchMin = Double.POSITIVE_INFINITY;
+        double batchMax = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < length; i++) {
+            final double value = values[i];
+            if (Double.isInfinite(value)) {
+                continue;
+            }
+            if (value < batchMin) {
+                batchMin = value;
+            }
+            if (value > batchMax) {
+                batchMax = value;
+            }
+        }
+        if (batchMin > batchMax) {
+            // empty or NaN only
+            return;
+        }
+        ensureRange(batchMin, batchMax);
+
+        for (int i = 0; i < length; i++) {
+            final double value = values[i];
+            if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+                bins[(int) (Math.floor(Math.scalb(value, -binWidthExponent)) - originIndex)]++;
+                count++;
+            }
+        }
+    }
+
+    @Override
+    public void accumulate(Raster raster, Rectangle rect, boolean[] validMask) {
+        final int numPixels = rect.width * rect.height;
+        if (samples == null || samples.length < numPixels) {
+            samples = new double[numPixels];
+        }
+        raster.getSamples(rect.x, rect.y, rect.width, rect.height, 0, samples);
+        int numValues = numPixels;
+        if (validMask != null) {
+            numValues = 0;
+            for (int i = 0; i < numPixels; i++) {
+                if (validMask[i]) {
+                    samples[numValues++] = samples[i];
+                }
+            }
+        }
+        accumulate(samples, numValues);
+    }
+
+    @Override
+    public void merge(DarkObjectAccumulator accumulator) {
+        final DarkObjectHistogram other = (DarkObjectHistogram) accumulator;
+        if (other.binCount != binCount) {
+            throw new IllegalArgumentException("Cannot merge histograms with different bin counts.");
+        }
+        if (other.count == 0) {
+            return;
+        }
+        ensureRange(other.minimum, other.maximum);
+        final int shift = binWidthExponent - other.binWidthExponent;
+        for (int i = 0; i < other.bins.length; i++) {
+            if (other.bins[i] != 0) {
+                final double index = Math.floor(Math.scalb(other.originIndex + i, -shift));
+                bins[(int) (index - originIndex)] += other.bins[i];
+            }
+        }
+        count += other.count;
+    }
+
+    /**
+     * Returns the value below which the given percentage of all values lies, at bin resolution. The result
+     * is limited to the range of values actually added. For an empty histogram zero is returned.
+     *
+     * @param percentile the percentile in percent (0..100)
+     *
+     * @return the value at the given percentile
+     */
+    @Override
+    public double getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0.0;
+        }
+        final double threshold = percentile * count / 100.0;
+        long sum = 0;
+        int binIndex = binCount - 1;
+        for (int i = 0; i < binCount; i++) {
+            sum += bins[i];
+            if (sum >= threshold) {
+                binIndex = i;
+                break;
+            }
+        }
+        final double binValue = Math.scalb(originIndex + binIndex, binWidthExponent);
+        return Math.min(Math.max(binValue, minimum), maximum);
+    }
+
+    public double getMinimum() {
+        return count > 0 ? minimum : Double.NaN;
+    }
+
+    public double getMaximum() {
+        return count > 0 ? maximum : Double.NaN;
+    }
+
+    @Override
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public long getMaxMemorySize() {
+        return 8L * binCount;
+    }
+
+    @Override
+    public void releaseBuffers() {
+        samples = null;
+    }
+
+    public double getBinWidth() {
+        return Math.scalb(1.0, binWidthExponent);
+    }
+
+    private void ensureRange(double min, double max) {
+        final double newMin = Math.min(minimum, min);
+        final double newMax = Math.max(maximum, max);
+        if (bins != null && newMin == minimum && newMax == maximum) {
+            return;
+        }
+        final int newExponent = findBinWidthExponent(newMin, newMax);
+        final double newOriginIndex = Math.floor(Math.scalb(newMin, -newExponent));
+        final long[] newBins = new long[binCount];
+        if (bins != null) {
+            final int shift = newExponent - binWidthExponent;
+            for (int i = 0; i < binCount; i++) {
+                if (bins[i] != 0) {
+                    final double index = Math.floor(Math.scalb(originIndex + i, -shift));
+                    newBins[(int) (index - newOriginIndex)] += bins[i];
+                }
+            }
+        }
+        bins = newBins;
+        binWidthExponent = newExponent;
+        originIndex = newOriginIndex;
+        minimum = newMin;
+        maximum = newMax;
+    }
+
+    private int findBinWidthExponent(double min, double max) {
+        int exponent = MIN_BIN_WIDTH_EXPONENT;
+        final double range = max - min;
+        if (range > 0) {
+            exponent = Math.max(exponent, Math.getExponent(range / binCount) - 1);
+        }
+        while (Math.floor(Math.scalb(max, -exponent)) - Math.floor(Math.scalb(min, -exponent)) >= binCount) {
+            exponent++;
+        }
+        return exponent;
+    }
+}
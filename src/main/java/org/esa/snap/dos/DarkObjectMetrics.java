@@ -0,0 +1,257 @@
+package org.esa.snap.dos;
+
+import org.esa.snap.core.util.SystemUtils;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Performance metrics of the dark object subtraction: time, processed pixels, tiles read and bytes allocated,
+ * for each processing phase and band.
+ * <p>
+ * The records of a band are accumulated into the totals of its phase as well, so each section of work is recorded
+ * once. The time of a band is summed over all threads which worked on it. The time of a phase total is the
+ * wall-clock time of the phase if it is measured as a whole by {@link #recordSection}, so its pixels per second are
+ * the throughput of all threads together.
+ * <p>
+ * Every operator instance has its own metrics, which also accumulate into the process wide metrics returned by
+ * {@link #getGlobal()}. The latter are registered as MXBean named {@value #OBJECT_NAME}. All methods are
+ * thread-safe.
+ *
+ * @author olafd
+ */
+public class DarkObjectMetrics implements DarkObjectMetricsMXBean {
+
+    public static final String OBJECT_NAME = "org.esa.snap.dos:type=DarkObjectMetrics";
+
+    /**
+     * The processing phases.
+     */
+    public enum Phase {
+        /**
+         * Evaluation of the mask expression of the dark object search area.
+         */
+        MASK,
+        /**
+         * Reading the source tiles and accumulating the dark object statistics.
+         */
+        STATISTICS,
+        /**
+         * Subtraction of the dark object values from the source tiles.
+         */
+        SUBTRACTION,
+        /**
+         * Writing the target product, which includes the computation of its tiles. Only recorded by the batch
+         * operator, which writes the target products itself.
+         */
+        WRITE
+    }
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+    private static final boolean ALLOCATION_MEASURABLE = isAllocationMeasurable();
+
+    private static DarkObjectMetrics global;
+
+    private final DarkObjectMetrics parent;
+    private final Map<String, Counters> countersMap;
+
+    /**
+     * Creates metrics which accumulate into the process wide metrics as well.
+     */
+    public DarkObjectMetrics() {
+        this(getGlobal());
+    }
+
+    private DarkObjectMetrics(DarkObjectMetrics parent) {
+        this.parent = parent;
+        this.countersMap = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @return the process wide metrics, registered at the platform MBean server
+     */
+    public static synchronized DarkObjectMetrics getGlobal() {
+        if (global == null) {
+            global = new DarkObjectMetrics(null);
+            try {
+                final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                final ObjectName objectName = new ObjectName(OBJECT_NAME);
+                if (!server.isRegistered(objectName)) {
+                    server.registerMBean(global, objectName);
+                }
+            } catch (JMException | RuntimeException e) {
+                SystemUtils.LOG.log(Level.WARNING, "Unable to register dark object metrics MXBean", e);
+            }
+        }
+        return global;
+    }
+
+    /**
+     * Starts measuring a section of work in the current thread.
+     *
+     * @return the start of the measurement, to be passed to {@link #record}
+     */
+    public static Start start() {
+        return new Start(System.nanoTime(), getAllocatedBytes());
+    }
+
+    /**
+     * Records a section of work done in the current thread since the given start. It is added to the band and to
+     * the totals of the phase.
+     *
+     * @param phase    the phase
+     * @param bandName the name of the band, or {@code null} for work which belongs to the phase as a whole
+     * @param start    the start of the measurement
+     * @param pixels   the number of pixels processed
+     * @param tiles    the number of tiles read
+     */
+    public void record(Phase phase, String bandName, Start start, long pixels, long tiles) {
+        final long bytesAllocated = ALLOCATION_MEASURABLE ? getAllocatedBytes() - start.allocatedBytes : -1;
+        record(phase, bandName, System.nanoTime() - start.nanoTime, pixels, tiles, bytesAllocated);
+    }
+
+    /**
+     * Records the wall-clock time of a phase measured as a whole, from one start to now, while the work itself may
+     * have been done (and recorded) in other threads. The pixels and tiles are added to the totals of the phase,
+     * the allocations of the current thread are not.
+     *
+     * @param phase  the phase
+     * @param start  the start of the phase
+     * @param pixels the number of pixels processed which are not recorded per band
+     * @param tiles  the number of tiles read which are not recorded per band
+     */
+    public void recordSection(Phase phase, Start start, long pixels, long tiles) {
+        recordSection(phase, System.nanoTime() - start.nanoTime, pixels, tiles);
+    }
+
+    private void record(Phase phase, String bandName, long nanos, long pixels, long tiles, long bytesAllocated) {
+        final Counters totals = countersMap.computeIfAbsent(phase.name(), k -> new Counters());
+        totals.add(nanos, pixels, tiles, bytesAllocated);
+        if (bandName != null) {
+            countersMap.computeIfAbsent(phase.name() + ":" + bandName, k -> new Counters())
+                    .add(nanos, pixels, tiles, bytesAllocated);
+        }
+        if (parent != null) {
+            parent.record(phase, bandName, nanos, pixels, tiles, bytesAllocated);
+        }
+    }
+
+    private void recordSection(Phase phase, long nanos, long pixels, long tiles) {
+        final Counters totals = countersMap.computeIfAbsent(phase.name(), k -> new Counters());
+        totals.elapsedNanos.add(nanos);
+        totals.pixels.add(pixels);
+        totals.tiles.add(tiles);
+        if (parent != null) {
+            parent.recordSection(phase, nanos, pixels, tiles);
+        }
+    }
+
+    @Override
+    public Map<String, Double> getTimeMillis() {
+        final Map<String, Double> values = new TreeMap<>();
+        countersMap.forEach((key, counters) -> values.put(key, counters.getNanos() / 1.0E6));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getPixels() {
+        final Map<String, Long> values = new TreeMap<>();
+        countersMap.forEach((key, counters) -> values.put(key, counters.pixels.sum()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Double> getPixelsPerSecond() {
+        final Map<String, Double> values = new TreeMap<>();
+        countersMap.forEach((key, counters) -> {
+            final long nanos = counters.getNanos();
+            values.put(key, nanos > 0 ? counters.pixels.sum() * 1.0E9 / nanos : 0.0);
+        });
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getTiles() {
+        final Map<String, Long> values = new TreeMap<>();
+        countersMap.forEach((key, counters) -> values.put(key, counters.tiles.sum()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getBytesAllocated() {
+        final Map<String, Long> values = new TreeMap<>();
+        if (ALLOCATION_MEASURABLE) {
+            countersMap.forEach((key, counters) -> values.put(key, counters.bytesAllocated.sum()));
+        }
+        return values;
+    }
+
+    @Override
+    public void reset() {
+        countersMap.clear();
+    }
+
+    private static long getAllocatedBytes() {
+        if (!ALLOCATION_MEASURABLE) {
+            return 0;
+        }
+        return ((com.sun.management.ThreadMXBean) THREAD_MX_BEAN).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+
+    private static boolean isAllocationMeasurable() {
+        try {
+            return THREAD_MX_BEAN instanceof com.sun.management.ThreadMXBean &&
+                    ((com.sun.management.ThreadMXBean) THREAD_MX_BEAN).isThreadAllocatedMemorySupported() &&
+                    ((com.sun.management.ThreadMXBean) THREAD_MX_BEAN).isThreadAllocatedMemoryEnabled();
+        } catch (LinkageError | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The start of a measurement in the current thread.
+     */
+    public static final class Start {
+
+        private final long nanoTime;
+        private final long allocatedBytes;
+
+        private Start(long nanoTime, long allocatedBytes) {
+            this.nanoTime = nanoTime;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+
+    private static final class Counters {
+
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder elapsedNanos = new LongAdder();
+        private final LongAdder pixels = new LongAdder();
+        private final LongAdder tiles = new LongAdder();
+        private final LongAdder bytesAllocated = new LongAdder();
+
+        private void add(long nanos, long pixels, long tiles, long bytesAllocated) {
+            this.nanos.add(nanos);
+            this.pixels.add(pixels);
+            this.tiles.add(tiles);
+            if (bytesAllocated >= 0) {
+                this.bytesAllocated.add(bytesAllocated);
+            }
+        }
+
+        private long getNanos() {
+            // the wall-clock time if measured, otherwise the time summed over all threads
+            final long elapsed = elapsedNanos.sum();
+            return elapsed > 0 ? elapsed : nanos.sum();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.esa.snap.dos;
+
+import java.util.Map;
+
+/**
+ * JMX management interface of the {@link DarkObjectMetrics}.
+ * <p>
+ * All maps are keyed by {@code "<PHASE>"} for the totals of a phase, or by {@code "<PHASE>:<band>"} for the
+ * share of a single band, e.g. {@code "STATISTICS"} and {@code "STATISTICS:B2"}.
+ *
+ * @author olafd
+ */
+public interface DarkObjectMetricsMXBean {
+
+    /**
+     * @return the time spent in each phase and band in milliseconds; for a band the sum over all threads, for the
+     * totals of a phase the wall-clock time if the phase is measured as a whole (statistics and write), otherwise
+     * also the sum over all threads
+     */
+    Map<String, Double> getTimeMillis();
+
+    /**
+     * @return the number of pixels processed in each phase and band
+     */
+    Map<String, Long> getPixels();
+
+    /**
+     * @return the number of pixels processed per second in each phase and band
+     */
+    Map<String, Double> getPixelsPerSecond();
+
+    /**
+     * @return the number of tiles read in each phase and band
+     */
+    Map<String, Long> getTiles();
+
+    /**
+     * @return the number of bytes allocated in each phase and band, summed over all threads, or an empty map if the
+     * JVM does not support measuring thread allocations
+     */
+    Map<String, Long> getBytesAllocated();
+
+    /**
+     * Resets all metrics.
+     */
+    void reset();
+}
@@ -0,0 +1,801 @@
+package org.esa.snap.dos;
+
+import com.bc.ceres.core.ProgressMonitor;
+import com.bc.ceres.glevel.MultiLevelImage;
+import org.esa.snap.core.datamodel.Band;
+import org.esa.snap.core.datamodel.ProductData;
+import org.esa.snap.core.util.SystemUtils;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Computes the dark object statistics for several bands in a single pass over the source tiles.
+ * Each tile is visited once, and the accumulators of all bands are updated during that visit.
+ * <p>
+ * The tiles can be processed in parallel on a fork-join pool. Each worker thread fills its own partial
+ * accumulators, which are merged once all tiles are done, so no locking is needed. Since neither the histogram bin
+ * layout nor the buckets of the quantile sketch depend on the processing order, the result is the same as for the
+ * serial computation, whichever tiles the workers happened to process.
+ * <p>
+ * Bands with 8 or 16 bit integer raw data and a linear, increasing scaling are accumulated in an exact
+ * {@link IntegerHistogram} of the raw values. The percentile is then converted to geophysical units once.
+ * All other bands are accumulated in a {@link DarkObjectHistogram} of the geophysical values. Alternatively,
+ * a {@link QuantileSketch} can be used for all bands.
+ * <p>
+ * For a faster, approximate estimation the statistics can be computed from a lower resolution level of the
+ * multi-level source images and/or from a regular sample of every n-th pixel in x and y. With a sample, the tiles
+ * are not copied: only the sampled pixels are taken from the source tiles, so the masks, buffers and binning scale
+ * with the number of samples. The resulting sampling error can be estimated with {@link #getSamplingError}.
+ * <p>
+ * Several dark object search areas can be evaluated in the same pass (e.g. for a parameter sweep). Each band is
+ * then read once per tile and accumulated into one accumulator per search area.
+ * <p>
+ * For a spatially varying dark object, the image can be divided into a grid of windows with one accumulator per
+ * window, in addition to the accumulator of the whole image. Tiles crossing window borders are split pixel by pixel,
+ * so the windows need not be aligned with the tiles. To keep the memory bounded, the windows of 16 bit integer bands
+ * use the compact {@link DarkObjectHistogram} of the raw values; the whole image keeps the exact
+ * {@link IntegerHistogram}, so the value of a band does not depend on the windows.
+ * <p>
+ * With a memory budget, the pass runs with predictable memory regardless of the scene size: the tiles are read
+ * without going through the shared JAI tile cache (see {@link UncachedTiles}), each worker holds at most one tile
+ * of one band at a time, and the number of workers is reduced until their accumulators and tile buffers fit into
+ * the budget. Only the raw source tiles of the bands are read; the valid masks and geophysical values are derived
+ * from them (see {@link RawTiles}), and the expressions of the search areas are evaluated on the raw tiles of the
+ * rasters they refer to (see {@link RawExpression}), so no image on top of the raw source images puts the raw tiles
+ * into the cache.
+ *
+ * @author olafd
+ */
+class DarkObjectStatistics {
+
+    private static final long MB = 1024 * 1024;
+
+    private final Band[] bands;
+    private final RenderedImage[] roiImages;
+    private String[] roiExpressions;
+    private final boolean[] rawDomain;
+    private int parallelism;
+    private ForkJoinPool pool;
+    private boolean useQuantileSketch;
+    private int level;
+    private int samplingStep;
+    private DarkObjectMetrics metrics;
+    private NoDataTiles noDataTiles;
+    private int windowSize;
+    private long memoryBudget;
+
+    /**
+     * @param bands    the bands to compute the statistics for, must all have the same raster size
+     * @param roiImage optional image defining the dark object search area (non-zero samples), may be {@code null}.
+     *                 If its size differs from the size of the bands, it is mapped to the bands by nearest neighbour.
+     */
+    DarkObjectStatistics(Band[] bands, RenderedImage roiImage) {
+        this(bands, new RenderedImage[]{roiImage});
+    }
+
+    /**
+     * @param bands     the bands to compute the statistics for, must all have the same raster size
+     * @param roiImages the images defining the dark object search areas, one set of accumulators is computed for
+     *                  each of them. An element may be {@code null} for the whole image.
+     */
+    DarkObjectStatistics(Band[] bands, RenderedImage[] roiImages) {
+        this.bands = bands;
+        this.roiImages = roiImages;
+        this.parallelism = 1;
+        this.samplingStep = 1;
+        this.rawDomain = new boolean[bands.length];
+        for (int i = 0; i < bands.length; i++) {
+            rawDomain[i] = isRawDomainApplicable(bands[i]);
+        }
+    }
+
+    /**
+     * Sets the number of threads used for the computation. A value of zero or less means the number of available
+     * processors. The default is 1, i.e. a serial computation in the calling thread.
+     *
+     * @param parallelism the degree of parallelism
+     */
+    void setParallelism(int parallelism) {
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Sets an externally managed pool to run the computation on. If set, the degree of parallelism is ignored.
+     *
+     * @param pool the pool, or {@code null} to create a pool according to the degree of parallelism
+     */
+    void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Sets whether the geophysical values of all bands are accumulated in a {@link QuantileSketch} instead of
+     * histograms. The default is {@code false}.
+     *
+     * @param useQuantileSketch whether to use a quantile sketch
+     */
+    void setUseQuantileSketch(boolean useQuantileSketch) {
+        this.useQuantileSketch = useQuantileSketch;
+        for (int i = 0; i < bands.length; i++) {
+            rawDomain[i] = !useQuantileSketch && isRawDomainApplicable(bands[i]);
+        }
+    }
+
+    /**
+     * Sets the resolution level of the multi-level source images the statistics are computed from. Levels beyond
+     * the coarsest available level are clamped to it. The default is 0, i.e. full resolution.
+     *
+     * @param level the resolution level
+     */
+    void setLevel(int level) {
+        this.level = Math.max(0, level);
+    }
+
+    /**
+     * Sets the step between sampled pixels in x and y direction. A step of 4 uses 1 of every 16 pixels.
+     * The default is 1, i.e. all pixels are used.
+     *
+     * @param samplingStep the sampling step
+     */
+    void setSamplingStep(int samplingStep) {
+        this.samplingStep = Math.max(1, samplingStep);
+    }
+
+    /**
+     * Sets the metrics the mask evaluation and the statistics of each band are recorded to.
+     *
+     * @param metrics the metrics, may be {@code null}
+     */
+    void setMetrics(DarkObjectMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Divides the image into a grid of square windows with separate accumulators. The default is 0, i.e. no
+     * windows, only the whole image.
+     *
+     * @param windowSize the window size in full resolution pixels, 0 for the whole image only
+     */
+    void setWindowSize(int windowSize) {
+        this.windowSize = Math.max(0, windowSize);
+    }
+
+    /**
+     * Sets the memory the statistics pass may use for its accumulators and tile buffers. The default is 0, i.e.
+     * no budget: the tiles are read through the JAI tile cache and the number of workers is not limited.
+     *
+     * @param memoryBudget the memory budget in bytes, 0 for none
+     */
+    void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = Math.max(0, memoryBudget);
+    }
+
+    /**
+     * @return the number of windows in x direction
+     */
+    int getNumWindowsX() {
+        return windowSize > 0 ? (bands[0].getRasterWidth() + windowSize - 1) / windowSize : 1;
+    }
+
+    /**
+     * @return the number of windows in y direction
+     */
+    int getNumWindowsY() {
+        return windowSize > 0 ? (bands[0].getRasterHeight() + windowSize - 1) / windowSize : 1;
+    }
+
+    /**
+     * Sets the expressions the images of the search areas were created from. With a memory budget, an expression
+     * is evaluated on the raw tiles of the rasters it refers to where possible (see {@link RawExpression}), instead
+     * of reading its mask image, which pulls these rasters through the tile cache.
+     *
+     * @param roiExpressions the expressions, one per search area, an element may be {@code null}
+     */
+    void setRoiExpressions(String[] roiExpressions) {
+        this.roiExpressions = roiExpressions;
+    }
+
+    /**
+     * Sets the record of tiles without any valid pixel. Tiles known to be invalid are skipped without reading
+     * them, and the validity of the tiles read at full resolution is recorded for later passes.
+     *
+     * @param noDataTiles the record of invalid tiles, may be {@code null}
+     */
+    void setNoDataTiles(NoDataTiles noDataTiles) {
+        this.noDataTiles = noDataTiles;
+    }
+
+    /**
+     * @return the number of pixels of all bands at the resolution level the statistics are computed from
+     */
+    long getPixelCount() {
+        if (bands.length == 0) {
+            return 0;
+        }
+        final RenderedImage referenceImage = getLevelImage(bands[0].getSourceImage());
+        return (long) referenceImage.getWidth() * referenceImage.getHeight() * bands.length;
+    }
+
+    /**
+     * @return {@code true} if the statistics are computed from a subset of the pixels only
+     */
+    boolean isSampled() {
+        return getLevel() > 0 || samplingStep > 1;
+    }
+
+    /**
+     * Walks over the tiles of the source images once and fills one accumulator per band.
+     *
+     * @param pm a progress monitor
+     *
+     * @return the accumulators, in the order of the bands
+     */
+    DarkObjectAccumulator[] computeAccumulators(ProgressMonitor pm) {
+        return computeAccumulatorSets(pm)[0];
+    }
+
+    /**
+     * Walks over the tiles of the source images once and fills one accumulator per search area and band.
+     *
+     * @param pm a progress monitor
+     *
+     * @return the accumulators, indexed by search area and band
+     */
+    DarkObjectAccumulator[][] computeAccumulatorSets(ProgressMonitor pm) {
+        final DarkObjectAccumulator[][][] accumulatorGrid = computeAccumulatorGrid(pm);
+        final DarkObjectAccumulator[][] accumulators = new DarkObjectAccumulator[roiImages.length][];
+        for (int r = 0; r < roiImages.length; r++) {
+            accumulators[r] = getImageAccumulators(accumulatorGrid[r]);
+        }
+        return accumulators;
+    }
+
+    /**
+     * Walks over the tiles of the source images once and fills one accumulator per search area, window and band,
+     * and one per search area and band for the whole image.
+     *
+     * @param pm a progress monitor
+     *
+     * @return the accumulators, indexed by search area, window (row-major, followed by the whole image) and band
+     */
+    DarkObjectAccumulator[][][] computeAccumulatorGrid(ProgressMonitor pm) {
+        if (bands.length == 0) {
+            return new DarkObjectAccumulator[roiImages.length][1][0];
+        }
+
+        final List<Rectangle> tileRectangles = getTileRectangles();
+        // the regions of interest are evaluated once per tile and shared by all bands; a mask image of different
+        // size (multi-size products) is mapped to the raster grid of the bands
+        final RenderedImage referenceImage = getLevelImage(bands[0].getSourceImage());
+        final RoiMask[] roiMasks = new RoiMask[roiImages.length];
+        for (int r = 0; r < roiImages.length; r++) {
+            if (roiImages[r] != null) {
+                final String expression = roiExpressions != null ? roiExpressions[r] : null;
+                if (memoryBudget > 0 && expression != null &&
+                        RawExpression.isApplicable(bands[0].getProduct(), expression, bands[0].getRasterSize(),
+                                                   getLevel())) {
+                    // the referenced rasters are read without the tile cache, like the bands themselves
+                    roiMasks[r] = new RoiMask(new RawExpression(bands[0].getProduct(), expression));
+                } else {
+                    roiMasks[r] = new RoiMask(getLevelImage(roiImages[r]), referenceImage.getWidth(),
+                                              referenceImage.getHeight());
+                    roiMasks[r].setBypassTileCache(memoryBudget > 0);
+                }
+            }
+        }
+        final RawTiles[] rawTiles = new RawTiles[bands.length];
+        for (int i = 0; i < bands.length; i++) {
+            if (memoryBudget > 0 && RawTiles.isApplicable(bands[i], getLevel())) {
+                rawTiles[i] = new RawTiles(bands[i]);
+            }
+        }
+        // the partial accumulators are held by this pass only, not by the (possibly shared) worker threads
+        final Map<Thread, DarkObjectAccumulator[][][]> workerAccumulators = new ConcurrentHashMap<>();
+        pm.beginTask("Computing dark object statistics...", tileRectangles.size());
+        // a shared pool with more workers than the memory budget allows is replaced by a smaller local pool
+        final int maxWorkers = getMaxWorkers(referenceImage);
+        final int numWorkers = Math.min(pool != null ? pool.getParallelism() : parallelism, maxWorkers);
+        try {
+            if (pool != null && pool.getParallelism() <= maxWorkers) {
+                pool.invoke(createTask(tileRectangles, roiMasks, rawTiles, workerAccumulators, pool.getParallelism(),
+                                       pm));
+            } else if (numWorkers > 1) {
+                final ForkJoinPool localPool = new ForkJoinPool(numWorkers);
+                try {
+                    localPool.invoke(createTask(tileRectangles, roiMasks, rawTiles, workerAccumulators, numWorkers,
+                                                pm));
+                } finally {
+                    localPool.shutdown();
+                }
+            } else {
+                createTask(tileRectangles, roiMasks, rawTiles, workerAccumulators, 1, pm).compute();
+            }
+        } finally {
+            pm.done();
+        }
+
+        // merge the partial accumulators of all workers
+        final DarkObjectAccumulator[][][] accumulators = createAccumulatorGrid();
+        for (DarkObjectAccumulator[][][] partialAccumulators : workerAccumulators.values()) {
+            for (int r = 0; r < accumulators.length; r++) {
+                for (int w = 0; w < accumulators[r].length; w++) {
+                    for (int i = 0; i < bands.length; i++) {
+                        accumulators[r][w][i].merge(partialAccumulators[r][w][i]);
+                    }
+                }
+            }
+        }
+        return accumulators;
+    }
+
+    /**
+     * @param windowAccumulators the accumulators of a search area as computed by {@link #computeAccumulatorGrid},
+     *                           indexed by window and band
+     *
+     * @return the accumulators of the whole image, in the order of the bands
+     */
+    static DarkObjectAccumulator[] getImageAccumulators(DarkObjectAccumulator[][] windowAccumulators) {
+        return windowAccumulators[windowAccumulators.length - 1];
+    }
+
+    /**
+     * Convenience method returning the dark object value of each band at the given percentile.
+     *
+     * @param pm         a progress monitor
+     * @param percentile the percentile in percent
+     *
+     * @return the dark object values in geophysical units, in the order of the bands
+     */
+    double[] computeDarkObjectValues(ProgressMonitor pm, double percentile) {
+        final DarkObjectAccumulator[] accumulators = computeAccumulators(pm);
+        final double[] darkObjectValues = new double[accumulators.length];
+        for (int i = 0; i < accumulators.length; i++) {
+            darkObjectValues[i] = getDarkObjectValue(i, accumulators[i], percentile);
+        }
+        return darkObjectValues;
+    }
+
+    /**
+     * Returns the dark object value of a band in geophysical units.
+     *
+     * @param bandIndex   the index of the band
+     * @param accumulator the accumulator computed for that band
+     * @param percentile  the percentile in percent
+     *
+     * @return the dark object value, zero if no valid samples have been accumulated
+     */
+    double getDarkObjectValue(int bandIndex, DarkObjectAccumulator accumulator, double percentile) {
+        if (accumulator.getCount() == 0) {
+            return 0.0;
+        }
+        final double value = accumulator.getValueAtPercentile(percentile);
+        return rawDomain[bandIndex] ? bands[bandIndex].scale(value) : value;
+    }
+
+    /**
+     * Estimates the sampling error of a dark object value computed from a pixel sample, in geophysical units.
+     * The rank uncertainty of the percentile is taken from the 95% confidence interval of a sample proportion
+     * (but at least one sample), and converted into a value range with the sample distribution itself.
+     *
+     * @param bandIndex   the index of the band
+     * @param accumulator the accumulator computed for that band
+     * @param percentile  the percentile in percent
+     *
+     * @return half the width of the estimated confidence interval of the dark object value
+     */
+    double getSamplingError(int bandIndex, DarkObjectAccumulator accumulator, double percentile) {
+        final long n = accumulator.getCount();
+        if (n == 0) {
+            return Double.NaN;
+        }
+        final double p = percentile / 100.0;
+        final double delta = Math.max(1.96 * Math.sqrt(p * (1.0 - p) / n), 1.0 / n);
+        final double lower = getDarkObjectValue(bandIndex, accumulator, 100.0 * Math.max(0.0, p - delta));
+        final double upper = getDarkObjectValue(bandIndex, accumulator, 100.0 * Math.min(1.0, p + delta));
+        return 0.5 * Math.abs(upper - lower);
+    }
+
+    static boolean isRawDomainApplicable(Band band) {
+        return IntegerHistogram.isSupported(band.getDataType()) &&
+                !band.isLog10Scaled() && band.getScalingFactor() > 0;
+    }
+
+    private TileTask createTask(List<Rectangle> tileRectangles, RoiMask[] roiMasks, RawTiles[] rawTiles,
+                                Map<Thread, DarkObjectAccumulator[][][]> accumulators, int parallelism,
+                                ProgressMonitor pm) {
+        // a few tasks per worker for load balancing
+        final int tilesPerTask = Math.max(1, tileRectangles.size() / (4 * parallelism));
+        return new TileTask(tileRectangles, 0, tileRectangles.size(), tilesPerTask, roiMasks, rawTiles, accumulators,
+                            pm);
+    }
+
+    private int getMaxWorkers(RenderedImage referenceImage) {
+        if (memoryBudget == 0) {
+            return Integer.MAX_VALUE;
+        }
+        long accumulatorBytes = getMaxMemorySize(createAccumulators(false));
+        if (windowSize > 0) {
+            accumulatorBytes += getMaxMemorySize(createAccumulators(true)) * getNumWindowsX() * getNumWindowsY();
+        }
+        accumulatorBytes *= roiImages.length;
+        // raw data, geophysical data and scratch buffer of one band in double precision, valid mask raster and flags
+        final long tileBytes = 26L * referenceImage.getTileWidth() * referenceImage.getTileHeight();
+        // the merged accumulators are needed in addition to the ones of the workers
+        final long maxWorkers = (memoryBudget - accumulatorBytes) / (accumulatorBytes + tileBytes);
+        if (maxWorkers < 1) {
+            final long minBytes = 2 * accumulatorBytes + tileBytes;
+            SystemUtils.LOG.warning("The dark object statistics need at least " + ((minBytes - 1) / MB + 1) +
+                                    " MB, more than the memory budget of " + memoryBudget / MB + " MB. " +
+                                    "Continuing with one worker.");
+        }
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxWorkers));
+    }
+
+    private static long getMaxMemorySize(DarkObjectAccumulator[] accumulators) {
+        long size = 0;
+        for (DarkObjectAccumulator accumulator : accumulators) {
+            size += accumulator.getMaxMemorySize();
+        }
+        return size;
+    }
+
+    private Raster getData(RenderedImage image, Rectangle rect) {
+        return memoryBudget > 0 ? UncachedTiles.getData(image, rect) : image.getData(rect);
+    }
+
+    /**
+     * Like {@link #getData}, but returns the tile containing the rectangle itself instead of a copy, if there is
+     * one. The returned raster may be larger than the rectangle and must not be modified.
+     */
+    private Raster getTileData(RenderedImage image, Rectangle rect) {
+        return memoryBudget > 0 ? UncachedTiles.getData(image, rect) : getTileOrData(image, rect);
+    }
+
+    /**
+     * Returns the tile of an image containing a rectangle, or a copy of the rectangle if it spans several tiles.
+     * The returned raster may be larger than the rectangle and must not be modified.
+     *
+     * @param image the image
+     * @param rect  the rectangle
+     *
+     * @return a raster containing at least the rectangle, in the coordinates of the image
+     */
+    static Raster getTileOrData(RenderedImage image, Rectangle rect) {
+        final int tileX = Math.floorDiv(rect.x - image.getTileGridXOffset(), image.getTileWidth());
+        final int tileY = Math.floorDiv(rect.y - image.getTileGridYOffset(), image.getTileHeight());
+        final Rectangle tileBounds = new Rectangle(image.getTileGridXOffset() + tileX * image.getTileWidth(),
+                                                   image.getTileGridYOffset() + tileY * image.getTileHeight(),
+                                                   image.getTileWidth(), image.getTileHeight());
+        return tileBounds.contains(rect) ? image.getTile(tileX, tileY) : image.getData(rect);
+    }
+
+    private int getLevel() {
+        return Math.min(level, bands[0].getSourceImage().getModel().getLevelCount() - 1);
+    }
+
+    private RenderedImage getLevelImage(RenderedImage image) {
+        if (image instanceof MultiLevelImage) {
+            return ((MultiLevelImage) image).getImage(getLevel());
+        }
+        return image;
+    }
+
+    private List<Rectangle> getTileRectangles() {
+        final RenderedImage referenceImage = getLevelImage(bands[0].getSourceImage());
+        final Rectangle imageBounds = new Rectangle(referenceImage.getMinX(), referenceImage.getMinY(),
+                                                    referenceImage.getWidth(), referenceImage.getHeight());
+        final int tileWidth = referenceImage.getTileWidth();
+        final int tileHeight = referenceImage.getTileHeight();
+
+        final List<Rectangle> tileRectangles = new ArrayList<>();
+        for (int tileY = 0; tileY < referenceImage.getNumYTiles(); tileY++) {
+            for (int tileX = 0; tileX < referenceImage.getNumXTiles(); tileX++) {
+                final Rectangle tileRect = new Rectangle(referenceImage.getTileGridXOffset() + tileX * tileWidth,
+                                                         referenceImage.getTileGridYOffset() + tileY * tileHeight,
+                                                         tileWidth, tileHeight).intersection(imageBounds);
+                if (!tileRect.isEmpty()) {
+                    tileRectangles.add(tileRect);
+                }
+            }
+        }
+        return tileRectangles;
+    }
+
+    private DarkObjectAccumulator[][][] createAccumulatorGrid() {
+        final int numWindows = windowSize > 0 ? getNumWindowsX() * getNumWindowsY() : 0;
+        final DarkObjectAccumulator[][][] accumulators = new DarkObjectAccumulator[roiImages.length][numWindows + 1][];
+        for (int r = 0; r < roiImages.length; r++) {
+            for (int w = 0; w < numWindows; w++) {
+                accumulators[r][w] = createAccumulators(true);
+            }
+            accumulators[r][numWindows] = createAccumulators(false);
+        }
+        return accumulators;
+    }
+
+    private DarkObjectAccumulator[] createAccumulators(boolean window) {
+        final DarkObjectAccumulator[] accumulators = new DarkObjectAccumulator[bands.length];
+        for (int i = 0; i < bands.length; i++) {
+            if (useQuantileSketch) {
+                accumulators[i] = new QuantileSketch();
+            } else if (rawDomain[i] && (!window || ProductData.getElemSize(bands[i].getDataType()) == 1)) {
+                // the exact histogram of 8 bit bands is smaller than the compact one
+                accumulators[i] = IntegerHistogram.create(bands[i].getDataType());
+            } else {
+                // for windows of raw domain bands, the raw values are binned
+                accumulators[i] = new DarkObjectHistogram();
+            }
+        }
+        return accumulators;
+    }
+
+    /**
+     * Returns the window index of each sampled column (or row) of a tile, i.e. of the window containing the
+     * pixel centre.
+     */
+    private int[] getWindowIndices(int origin, int numSamples, double levelScale, int numWindows) {
+        final int[] indices = new int[numSamples];
+        final int first = getFirstSample(origin);
+        for (int i = 0; i < numSamples; i++) {
+            final int index = (int) ((first + i * samplingStep + 0.5) * levelScale / windowSize);
+            indices[i] = Math.min(index, numWindows - 1);
+        }
+        return indices;
+    }
+
+    private void accumulateTile(Rectangle tileRect, RoiMask[] roiMasks, RawTiles[] rawTiles,
+                                DarkObjectAccumulator[][][] accumulatorGrid, boolean[] validMask,
+                                boolean[] windowMask) {
+        final long numPixels = (long) tileRect.width * tileRect.height;
+        // the sampled pixels of the tile, as a compact grid starting at (0, 0)
+        final Rectangle sampleRect = getSampleRect(tileRect);
+        if (sampleRect.isEmpty()) {
+            return;
+        }
+        final Rectangle rect = samplingStep > 1 ? sampleRect : tileRect;
+        int[] windowXs = null;
+        int[] windowYs = null;
+        if (windowSize > 0) {
+            final RenderedImage referenceImage = getLevelImage(bands[0].getSourceImage());
+            final double levelScale = (double) bands[0].getRasterWidth() / referenceImage.getWidth();
+            windowXs = getWindowIndices(tileRect.x, rect.width, levelScale, getNumWindowsX());
+            windowYs = getWindowIndices(tileRect.y, rect.height, levelScale, getNumWindowsY());
+        }
+        final RoiMask.TileBits[] roiBits = new RoiMask.TileBits[roiMasks.length];
+        boolean anyRoi = false;
+        for (int r = 0; r < roiMasks.length; r++) {
+            roiBits[r] = RoiMask.TileBits.ALL;
+            if (roiMasks[r] != null) {
+                final DarkObjectMetrics.Start start = DarkObjectMetrics.start();
+                roiBits[r] = roiMasks[r].getTileBits(tileRect);
+                if (metrics != null) {
+                    metrics.record(DarkObjectMetrics.Phase.MASK, null, start, numPixels, 1);
+                }
+            }
+            anyRoi |= !roiBits[r].isEmpty();
+        }
+        if (!anyRoi) {
+            // no band data needs to be read for tiles outside the regions of interest
+            return;
+        }
+        // the no-data record holds full resolution tiles only; with sampling, the valid mask is still read for the
+        // whole tile, so the record is exact as well
+        final boolean recordNoData = noDataTiles != null && getLevel() == 0;
+        for (int i = 0; i < bands.length; i++) {
+            final DarkObjectMetrics.Start start = DarkObjectMetrics.start();
+            final Band band = bands[i];
+            if (recordNoData && Boolean.TRUE.equals(noDataTiles.getCached(band, tileRect))) {
+                continue;
+            }
+            // with raw tiles, the raw data are needed for the valid mask anyway
+            final Raster rawRaster = rawTiles[i] != null ?
+                    getTileData(getLevelImage(band.getSourceImage()), tileRect) : null;
+            final Raster validRaster;
+            if (rawRaster != null) {
+                validRaster = rawTiles[i].getValidMask(rawRaster, tileRect);
+            } else {
+                validRaster = band.getValidMaskImage() != null ?
+                        getTileData(getLevelImage(band.getValidMaskImage()), tileRect) : null;
+            }
+            final boolean invalid = recordNoData && validRaster != null &&
+                    noDataTiles.update(band, tileRect, validRaster);
+            // the band data are read at most once, for all regions of interest
+            Raster dataRaster = null;
+            for (int r = 0; r < roiBits.length && !invalid; r++) {
+                if (!roiBits[r].isEmpty() && computeValidMask(tileRect, validRaster, roiBits[r], validMask)) {
+                    if (dataRaster == null && rawRaster != null) {
+                        final Raster rawData = samplingStep > 1 ?
+                                subsample(rawRaster, tileRect, sampleRect) : rawRaster;
+                        dataRaster = rawDomain[i] ? rawData : rawTiles[i].getGeophysicalData(rawData, rect);
+                    } else if (dataRaster == null) {
+                        final RenderedImage image = rawDomain[i] ? band.getSourceImage() : band.getGeophysicalImage();
+                        dataRaster = samplingStep > 1 ?
+                                subsample(getTileData(getLevelImage(image), tileRect), tileRect, sampleRect) :
+                                getData(getLevelImage(image), tileRect);
+                    }
+                    final boolean masked = validRaster != null || !roiBits[r].isFull();
+                    accumulate(getImageAccumulators(accumulatorGrid[r])[i], dataRaster, rect,
+                               masked ? validMask : null);
+                    if (windowSize > 0) {
+                        accumulateWindows(accumulatorGrid[r], i, dataRaster, rect, windowXs, windowYs,
+                                          masked ? validMask : null, windowMask);
+                    }
+                }
+            }
+            if (metrics != null) {
+                metrics.record(DarkObjectMetrics.Phase.STATISTICS, band.getName(), start, numPixels,
+                               dataRaster != null ? 1 : 0);
+            }
+        }
+    }
+
+    private void accumulate(DarkObjectAccumulator accumulator, Raster dataRaster, Rectangle rect,
+                            boolean[] validMask) {
+        accumulator.accumulate(dataRaster, rect, validMask);
+        if (memoryBudget > 0 || windowSize > 0) {
+            // keep one scratch buffer per worker in flight, not one per accumulator
+            accumulator.releaseBuffers();
+        }
+    }
+
+    /**
+     * Adds the sampled pixels of a tile to the accumulators of the windows containing them. A tile crossing window
+     * borders is split into one part per window.
+     */
+    private void accumulateWindows(DarkObjectAccumulator[][] accumulators, int bandIndex, Raster dataRaster,
+                                   Rectangle rect, int[] windowXs, int[] windowYs, boolean[] validMask,
+                                   boolean[] windowMask) {
+        for (int y0 = 0, y1; y0 < rect.height; y0 = y1) {
+            y1 = y0 + 1;
+            while (y1 < rect.height && windowYs[y1] == windowYs[y0]) {
+                y1++;
+            }
+            for (int x0 = 0, x1; x0 < rect.width; x0 = x1) {
+                x1 = x0 + 1;
+                while (x1 < rect.width && windowXs[x1] == windowXs[x0]) {
+                    x1++;
+                }
+                final Rectangle windowRect = new Rectangle(rect.x + x0, rect.y + y0, x1 - x0, y1 - y0);
+                boolean[] mask = validMask;
+                boolean anyValid = true;
+                if (validMask != null && !windowRect.equals(rect)) {
+                    // the mask of the part, in row-major order of the part
+                    mask = windowMask;
+                    anyValid = false;
+                    int index = 0;
+                    for (int y = y0; y < y1; y++) {
+                        for (int x = x0; x < x1; x++, index++) {
+                            mask[index] = validMask[y * rect.width + x];
+                            anyValid |= mask[index];
+                        }
+                    }
+                }
+                if (anyValid) {
+                    final int window = windowYs[y0] * getNumWindowsX() + windowXs[x0];
+                    accumulate(accumulators[window][bandIndex], dataRaster, windowRect, mask);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills the valid mask of the sampled pixels of a tile, in row-major order of the sample grid.
+     */
+    private boolean computeValidMask(Rectangle rect, Raster validRaster, RoiMask.TileBits roiBits,
+                                     boolean[] validMask) {
+        if (validRaster == null && roiBits.isFull()) {
+            return true;
+        }
+        boolean anyValid = false;
+        int index = 0;
+        for (int y = getFirstSample(rect.y); y < rect.y + rect.height; y += samplingStep) {
+            // the region bits are given for all pixels of the tile
+            final int roiOffset = (y - rect.y) * rect.width - rect.x;
+            for (int x = getFirstSample(rect.x); x < rect.x + rect.width; x += samplingStep, index++) {
+                final boolean valid = roiBits.get(roiOffset + x) &&
+                        (validRaster == null || validRaster.getSample(x, y, 0) != 0);
+                validMask[index] = valid;
+                anyValid |= valid;
+            }
+        }
+        return anyValid;
+    }
+
+    private int getFirstSample(int coordinate) {
+        return (coordinate + samplingStep - 1) / samplingStep * samplingStep;
+    }
+
+    private Rectangle getSampleRect(Rectangle rect) {
+        final int numX = Math.max(0, (rect.x + rect.width - getFirstSample(rect.x) + samplingStep - 1) / samplingStep);
+        final int numY = Math.max(0, (rect.y + rect.height - getFirstSample(rect.y) + samplingStep - 1) / samplingStep);
+        return new Rectangle(0, 0, numX, numY);
+    }
+
+    /**
+     * Copies the sampled pixels of a tile into a compact raster of the same data type.
+     */
+    private Raster subsample(Raster raster, Rectangle rect, Rectangle sampleRect) {
+        final WritableRaster samples = raster.createCompatibleWritableRaster(sampleRect.width, sampleRect.height);
+        final int firstX = getFirstSample(rect.x);
+        final int firstY = getFirstSample(rect.y);
+        for (int j = 0; j < sampleRect.height; j++) {
+            for (int i = 0; i < sampleRect.width; i++) {
+                samples.setSample(i, j, 0, raster.getSampleDouble(firstX + i * samplingStep,
+                                                                  firstY + j * samplingStep, 0));
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Processes a range of tiles into the partial accumulators of the current worker thread.
+     * Larger ranges are split in halves.
+     */
+    private class TileTask extends RecursiveAction {
+
+        private final List<Rectangle> tileRectangles;
+        private final int start;
+        private final int end;
+        private final int tilesPerTask;
+        private final RoiMask[] roiMasks;
+        private final RawTiles[] rawTiles;
+        private final Map<Thread, DarkObjectAccumulator[][][]> accumulators;
+        private final ProgressMonitor pm;
+
+        TileTask(List<Rectangle> tileRectangles, int start, int end, int tilesPerTask, RoiMask[] roiMasks,
+                 RawTiles[] rawTiles, Map<Thread, DarkObjectAccumulator[][][]> accumulators, ProgressMonitor pm) {
+            this.tileRectangles = tileRectangles;
+            this.start = start;
+            this.end = end;
+            this.tilesPerTask = tilesPerTask;
+            this.roiMasks = roiMasks;
+            this.rawTiles = rawTiles;
+            this.accumulators = accumulators;
+            this.pm = pm;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > tilesPerTask && inForkJoinPool()) {
+                final int middle = (start + end) >>> 1;
+                invokeAll(new TileTask(tileRectangles, start, middle, tilesPerTask, roiMasks, rawTiles, accumulators,
+                                       pm),
+                          new TileTask(tileRectangles, middle, end, tilesPerTask, roiMasks, rawTiles, accumulators,
+                                       pm));
+                return;
+            }
+
+            final DarkObjectAccumulator[][][] workerAccumulators =
+                    accumulators.computeIfAbsent(Thread.currentThread(), thread -> createAccumulatorGrid());
+            final boolean[] validMask = new boolean[getMaxTileSize()];
+            final boolean[] windowMask = windowSize > 0 ? new boolean[validMask.length] : null;
+            for (int i = start; i < end; i++) {
+                if (pm.isCanceled()) {
+                    break;
+                }
+                accumulateTile(tileRectangles.get(i), roiMasks, rawTiles, workerAccumulators, validMask, windowMask);
+                synchronized (pm) {
+                    pm.worked(1);
+                }
+            }
+        }
+
+        private int getMaxTileSize() {
+            int maxSize = 0;
+            for (int i = start; i < end; i++) {
+                final Rectangle rect = tileRectangles.get(i);
+                maxSize = Math.max(maxSize, rect.width * rect.height);
+            }
+            return maxSize;
+        }
+    }
+}
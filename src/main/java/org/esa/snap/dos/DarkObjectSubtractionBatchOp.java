@@ -0,0 +1,395 @@
+package org.esa.snap.dos;
+
+import com.bc.ceres.core.ProgressMonitor;
+import com.bc.ceres.core.SubProgressMonitor;
+import org.esa.snap.core.dataio.ProductIO;
+import org.esa.snap.core.datamodel.Band;
+import org.esa.snap.core.datamodel.MetadataAttribute;
+import org.esa.snap.core.datamodel.MetadataElement;
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.datamodel.ProductData;
+import org.esa.snap.core.gpf.GPF;
+import org.esa.snap.core.gpf.Operator;
+import org.esa.snap.core.gpf.OperatorException;
+import org.esa.snap.core.gpf.OperatorSpi;
+import org.esa.snap.core.gpf.annotations.OperatorMetadata;
+import org.esa.snap.core.gpf.annotations.Parameter;
+import org.esa.snap.core.gpf.annotations.TargetProduct;
+import org.esa.snap.core.gpf.descriptor.ParameterDescriptor;
+import org.esa.snap.core.util.io.FileUtils;
+import org.esa.snap.core.util.io.WildcardMatcher;
+
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+
+/**
+ * Performs dark object subtraction for a batch of source products (e.g. a time series) within one invocation.
+ * <p>
+ * The products are processed one after the other, the dark object statistics of all products run on one shared
+ * worker pool. While a product is processed, the next one is already opened and the first row of tiles of its
+ * source bands is read ahead on a separate thread, unless the statistics are computed within a memory budget and
+ * thus bypass the tile cache. The dark object values of all products are written to one tab-separated summary
+ * file and are also contained in the metadata of the (otherwise empty) target product.
+ * <p>
+ * All parameters of {@link DarkObjectSubtractionOp} are declared here as well and forwarded by name.
+ *
+ * @author olafd
+ */
+@OperatorMetadata(alias = "Snap.DarkObjectSubtraction.Batch",
+        version = "1.0-SNAPSHOT",
+        authors = "Olaf Danne",
+        copyright = "(c) 2019 by Brockmann Consult",
+        description = "Performs dark object subtraction for a batch of source products.")
+public class DarkObjectSubtractionBatchOp extends Operator {
+
+    @Parameter(label = "Source product paths", notNull = true,
+            description = "The paths of the source products. Wildcards are supported, " +
+                    "e.g. '/data/scenes/*.dim' for all products in a directory.")
+    private String[] sourceProductPaths;
+
+    @Parameter(label = "Target directory", notNull = true,
+            description = "The directory the target products are written to.")
+    private File targetDirectory;
+
+    @Parameter(label = "Target format", defaultValue = "BEAM-DIMAP",
+            description = "The format of the target products.")
+    private String targetFormatName;
+
+    @Parameter(label = "Summary file",
+            description = "The file the dark object values of all products are written to. " +
+                    "If not set, '" + DEFAULT_SUMMARY_FILE_NAME + "' in the target directory is used.")
+    private File summaryFile;
+
+    @Parameter(label = "Source bands",
+            description = "The source bands to be considered for the dark object subtraction.")
+    private String[] sourceBandNames;
+
+    @Parameter(label = "Sensor",
+            description = "If set and no source bands are given, the spectral bands of this sensor are used.")
+    private Sensor sensor;
+
+    @Parameter(label = "Mask expression for dark object search area",
+            description = "Mask expression for dark object search area.")
+    private String maskExpression;
+
+    @Parameter(label = "Percentile of minimum in image data", interval = "[0,100]",
+            description = "Percentile of minimum in image data in percent.")
+    private double histogramMinimumPercentile;
+
+    @Parameter(label = "Statistics method",
+            valueSet = {DarkObjectSubtractionOp.STATISTICS_METHOD_HISTOGRAM,
+                    DarkObjectSubtractionOp.STATISTICS_METHOD_QUANTILE_SKETCH},
+            defaultValue = DarkObjectSubtractionOp.STATISTICS_METHOD_HISTOGRAM,
+            description = "Method to estimate the dark object values.")
+    private String statisticsMethod;
+
+    @Parameter(label = "Degree of parallelism", defaultValue = "0",
+            description = "Number of threads of the worker pool shared by all products " +
+                    "(0 means the number of available processors).")
+    private int parallelism;
+
+    @Parameter(label = "Apply dark object value as scaling offset", defaultValue = "false",
+            description = "If set, the dark object value is only applied as adjusted scaling offset of the target band.")
+    private boolean subtractViaScalingOffset;
+
+    @Parameter(label = "Resolution level for statistics", defaultValue = "0", interval = "[0,10]",
+            description = "Resolution level of the multi-level source images the dark object values are estimated from.")
+    private int statisticsLevel;
+
+    @Parameter(label = "Pixel sampling step for statistics", defaultValue = "1", interval = "[1,64]",
+            description = "Only every n-th pixel in x and y direction is used to estimate the dark object values.")
+    private int statisticsSamplingStep;
+
+    @Parameter(label = "Memory budget for statistics (MB)", defaultValue = "0", interval = "[0,*]",
+            description = "If greater than 0, the dark object statistics of each product are computed within this " +
+                    "memory, bypassing the JAI tile cache.")
+    private int statisticsMemoryBudget;
+
+    @Parameter(label = "Progressive estimation", defaultValue = "false",
+            description = "If set, the dark object values of each product are estimated coarse-to-fine.")
+    private boolean progressiveEstimation;
+
+    @Parameter(label = "Dark object cache directory",
+            description = "Directory of a persistent cache of dark object values. If not set, no cache is used.")
+    private File cacheDirectory;
+
+    @Parameter(label = "Maximum number of cache entries", defaultValue = "10000", interval = "[1,*]",
+            description = "Maximum number of entries in the dark object cache.")
+    private int cacheMaxEntries;
+
+    @Parameter(label = "Percentiles for parameter sweep",
+            description = "Optional list of percentiles (in percent) for a parameter sweep, written to the metadata " +
+                    "of each target product.")
+    private double[] sweepPercentiles;
+
+    @Parameter(label = "Mask expressions for parameter sweep",
+            description = "Optional list of further mask expressions for a parameter sweep.")
+    private String[] sweepMaskExpressions;
+
+    @Parameter(label = "Write performance metrics to metadata", defaultValue = "false",
+            description = "If set, the performance metrics are written to the metadata of each target product.")
+    private boolean writeMetricsToMetadata;
+
+    @Parameter(label = "Window size for spatially varying dark object", defaultValue = "0", interval = "[0,*]",
+            description = "If greater than 0, the dark object value is computed per window of this size and " +
+                    "interpolated between the windows.")
+    private int windowSize;
+
+    @Parameter(label = "Output data type",
+            valueSet = {DarkObjectSubtractionOp.OUTPUT_TYPE_FLOAT32, DarkObjectSubtractionOp.OUTPUT_TYPE_INT16,
+                    DarkObjectSubtractionOp.OUTPUT_TYPE_UINT16},
+            defaultValue = DarkObjectSubtractionOp.OUTPUT_TYPE_FLOAT32,
+            description = "Data type of the subtracted target bands.")
+    private String outputDataType;
+
+    @Parameter(label = "Scaling factor of integer output", defaultValue = "1.0E-4",
+            description = "Scaling factor of int16 and uint16 target bands.")
+    private double outputScalingFactor;
+
+    @Parameter(label = "Clamp negative values at zero", defaultValue = "false",
+            description = "If set, negative values after the subtraction are set to zero.")
+    private boolean clampNegativeValues;
+
+    @TargetProduct
+    private Product targetProduct;
+
+    final static String DEFAULT_SUMMARY_FILE_NAME = "dark_object_values.txt";
+
+    private final static String TARGET_PRODUCT_NAME = "Dark-Object-Subtraction-Batch";
+    private final static String TARGET_PRODUCT_TYPE = "dark-object-subtraction-batch";
+
+    private List<File> sourceFiles;
+
+    @Override
+    public void initialize() throws OperatorException {
+        if ((sourceBandNames == null || sourceBandNames.length == 0) && sensor == null) {
+            throw new OperatorException("Please select at least one source band or a sensor.");
+        }
+        sourceFiles = getSourceFiles();
+        if (sourceFiles.isEmpty()) {
+            throw new OperatorException("No source products found.");
+        }
+        if (!targetDirectory.isDirectory() && !targetDirectory.mkdirs()) {
+            throw new OperatorException("Unable to create target directory " + targetDirectory);
+        }
+        if (summaryFile == null) {
+            summaryFile = new File(targetDirectory, DEFAULT_SUMMARY_FILE_NAME);
+        }
+
+        // the products are written by doExecute, the target product only carries the summary metadata
+        targetProduct = new Product(TARGET_PRODUCT_NAME, TARGET_PRODUCT_TYPE, 1, 1);
+        targetProduct.getMetadataRoot().addElement(
+                new MetadataElement(DarkObjectSubtractionOp.DARK_OBJECT_METADATA_GROUP_NAME));
+        setTargetProduct(targetProduct);
+    }
+
+    @Override
+    public void doExecute(ProgressMonitor pm) throws OperatorException {
+        final ForkJoinPool pool = new ForkJoinPool(parallelism > 0 ? parallelism :
+                                                           Runtime.getRuntime().availableProcessors());
+        final ExecutorService readAheadExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "DarkObjectSubtraction-ReadAhead");
+            thread.setDaemon(true);
+            return thread;
+        });
+        pm.beginTask("Executing dark object subtraction for " + sourceFiles.size() + " products...",
+                     sourceFiles.size());
+        try (PrintWriter summaryWriter = new PrintWriter(Files.newBufferedWriter(summaryFile.toPath(),
+                                                                                 StandardCharsets.UTF_8))) {
+            summaryWriter.println("product\tband\tdark_object_value\tsampling_error");
+
+            Future<Product> nextProduct = readAheadExecutor.submit(() -> openProduct(sourceFiles.get(0)));
+            for (int i = 0; i < sourceFiles.size(); i++) {
+                final File sourceFile = sourceFiles.get(i);
+                final Product sourceProduct = getProduct(sourceFile, nextProduct);
+                // open the next product while the current one is processed
+                if (i + 1 < sourceFiles.size()) {
+                    final File nextFile = sourceFiles.get(i + 1);
+                    nextProduct = readAheadExecutor.submit(() -> openProduct(nextFile));
+                } else {
+                    nextProduct = null;
+                }
+                if (pm.isCanceled()) {
+                    disposeProduct(sourceProduct);
+                    break;
+                }
+                if (sourceProduct != null) {
+                    try {
+                        processProduct(sourceFile, sourceProduct, pool, summaryWriter, SubProgressMonitor.create(pm, 1));
+                    } catch (RuntimeException e) {
+                        // e.g. a reader failing on a corrupt file, the other products are still processed
+                        getLogger().log(Level.WARNING, "Dark object subtraction failed for " + sourceFile + ": " +
+                                e.getMessage(), e);
+                    } finally {
+                        sourceProduct.dispose();
+                    }
+                } else {
+                    pm.worked(1);
+                }
+            }
+            if (nextProduct != null) {
+                disposeProduct(getProduct(null, nextProduct));
+            }
+        } catch (IOException e) {
+            throw new OperatorException("Unable to write summary file " + summaryFile + ": " + e.getMessage(), e);
+        } finally {
+            readAheadExecutor.shutdownNow();
+            pool.shutdown();
+            pm.done();
+        }
+    }
+
+    private void processProduct(File sourceFile, Product sourceProduct, ForkJoinPool pool, PrintWriter summaryWriter,
+                                ProgressMonitor pm) {
+        final DarkObjectSubtractionOp operator = new DarkObjectSubtractionOp();
+        operator.setSourceProduct(sourceProduct);
+        for (Map.Entry<String, Object> parameter : getOperatorParameters().entrySet()) {
+            operator.setParameter(parameter.getKey(), parameter.getValue());
+        }
+        operator.setStatisticsPool(pool);
+        final Product dosProduct = operator.getTargetProduct();
+        try {
+            final File targetFile = new File(targetDirectory, FileUtils.getFilenameWithoutExtension(sourceFile));
+            final DarkObjectMetrics.Start start = DarkObjectMetrics.start();
+            GPF.writeProduct(dosProduct, targetFile, targetFormatName, false, pm);
+            long numPixels = 0;
+            for (Band band : dosProduct.getBands()) {
+                numPixels += (long) band.getRasterWidth() * band.getRasterHeight();
+            }
+            // the time of the write phase includes the computation of the target tiles
+            operator.getMetrics().recordSection(DarkObjectMetrics.Phase.WRITE, start, numPixels, 0);
+
+            final String productName = sourceFile.getName();
+            final MetadataElement dosElement =
+                    dosProduct.getMetadataRoot().getElement(DarkObjectSubtractionOp.DARK_OBJECT_METADATA_GROUP_NAME);
+            final MetadataElement summaryElement =
+                    targetProduct.getMetadataRoot().getElement(DarkObjectSubtractionOp.DARK_OBJECT_METADATA_GROUP_NAME);
+            final MetadataElement productElement = new MetadataElement(productName);
+            for (String bandName : getBandNames()) {
+                if (dosElement.containsAttribute(bandName)) {
+                    final double darkObjectValue = dosElement.getAttributeDouble(bandName);
+                    final String errorName = bandName + DarkObjectSubtractionOp.SAMPLING_ERROR_ATTRIBUTE_SUFFIX;
+                    final double samplingError = dosElement.getAttributeDouble(errorName, Double.NaN);
+                    summaryWriter.println(productName + "\t" + bandName + "\t" + darkObjectValue + "\t" +
+                                                  samplingError);
+                    productElement.addAttribute(new MetadataAttribute(bandName,
+                                                    ProductData.createInstance(new double[]{darkObjectValue}), true));
+                }
+            }
+            // keep what is done so far if the batch is interrupted
+            summaryWriter.flush();
+            summaryElement.addElement(productElement);
+        } finally {
+            dosProduct.dispose();
+        }
+    }
+
+    private Map<String, Object> getOperatorParameters() {
+        // taken from the descriptors, so a new parameter of the single product operator is forwarded as soon as
+        // it is declared here
+        final Set<String> batchParameterNames = getParameterNames(getSpi());
+        final Map<String, Object> parameters = new LinkedHashMap<>();
+        for (String name : getParameterNames(new DarkObjectSubtractionOp.Spi())) {
+            final Object value = batchParameterNames.contains(name) ? getParameter(name) : null;
+            if (value != null) {
+                parameters.put(name, value);
+            }
+        }
+        return parameters;
+    }
+
+    static Set<String> getParameterNames(OperatorSpi spi) {
+        final Set<String> names = new LinkedHashSet<>();
+        for (ParameterDescriptor descriptor : spi.getOperatorDescriptor().getParameterDescriptors()) {
+            names.add(descriptor.getName());
+        }
+        return names;
+    }
+
+    private String[] getBandNames() {
+        // bands of the sensor which are missing in a product are skipped
+        return sourceBandNames != null && sourceBandNames.length > 0 ? sourceBandNames : sensor.getSpectralBands();
+    }
+
+    private Product openProduct(File sourceFile) throws IOException {
+        final Product product = ProductIO.readProduct(sourceFile);
+        if (product == null) {
+            throw new IOException("No reader found for " + sourceFile);
+        }
+        if (statisticsMemoryBudget > 0) {
+            // the statistics bypass the tile cache, tiles read ahead would only evict the ones of other operators
+            return product;
+        }
+        // read the first row of tiles, so they are in the tile cache when the statistics start
+        for (String bandName : getBandNames()) {
+            final Band band = product.getBand(bandName);
+            if (band != null) {
+                final RenderedImage image = band.getSourceImage();
+                for (int tileX = 0; tileX < image.getNumXTiles(); tileX++) {
+                    image.getTile(image.getMinTileX() + tileX, image.getMinTileY());
+                }
+            }
+        }
+        return product;
+    }
+
+    private Product getProduct(File sourceFile, Future<Product> product) {
+        try {
+            return product.get();
+        } catch (ExecutionException e) {
+            if (sourceFile != null) {
+                getLogger().log(Level.WARNING, "Unable to read source product " + sourceFile + ": " +
+                        e.getCause().getMessage(), e.getCause());
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OperatorException(e);
+        }
+    }
+
+    private static void disposeProduct(Product product) {
+        if (product != null) {
+            product.dispose();
+        }
+    }
+
+    private List<File> getSourceFiles() {
+        final Set<File> files = new LinkedHashSet<>();
+        for (String sourceProductPath : sourceProductPaths) {
+            try {
+                final File[] matches = WildcardMatcher.glob(sourceProductPath.trim());
+                Arrays.sort(matches);
+                files.addAll(Arrays.asList(matches));
+            } catch (IOException e) {
+                throw new OperatorException("Invalid source product path '" + sourceProductPath + "': " +
+                                                    e.getMessage(), e);
+            }
+        }
+        return new ArrayList<>(files);
+    }
+
+    public static class Spi extends OperatorSpi {
+
+        public Spi() {
+            super(DarkObjectSubtractionBatchOp.class);
+        }
+    }
+}
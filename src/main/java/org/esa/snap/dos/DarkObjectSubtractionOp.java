@@ -1,25 +1,49 @@
 package org.esa.snap.dos;
 
 import com.bc.ceres.core.ProgressMonitor;
+import com.bc.ceres.core.SubProgressMonitor;
+import org.esa.snap.core.dataio.ProductReader;
 import org.esa.snap.core.datamodel.*;
+import org.esa.snap.core.dataop.barithm.BandArithmetic;
 import org.esa.snap.core.gpf.Operator;
 import org.esa.snap.core.gpf.OperatorException;
 import org.esa.snap.core.gpf.OperatorSpi;
+import org.esa.snap.core.gpf.Tile;
 import org.esa.snap.core.gpf.annotations.OperatorMetadata;
 import org.esa.snap.core.gpf.annotations.Parameter;
 import org.esa.snap.core.gpf.annotations.SourceProduct;
 import org.esa.snap.core.gpf.annotations.TargetProduct;
+import org.esa.snap.core.jexp.ParseException;
 import org.esa.snap.core.util.ProductUtils;
 import org.esa.snap.core.util.converters.BooleanExpressionConverter;
 
 import javax.media.jai.Histogram;
 import javax.media.jai.JAI;
 import javax.media.jai.RenderedOp;
+import java.awt.Rectangle;
+import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
 import java.awt.image.renderable.ParameterBlock;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
 
 /**
  * Performs dark object subtraction for spectral bands in source product.
+ * <p>
+ * Multi-size products are processed without resampling: every target band keeps the raster size of its source
+ * band, and the dark object statistics of each band are computed at the band's own resolution.
  *
  * @author olafd
  */
@@ -36,15 +60,123 @@ public class DarkObjectSubtractionOp extends Operator {
             rasterDataNodeType = Band.class)
     private String[] sourceBandNames;
 
+    @Parameter(label = "Sensor",
+            description = "If set and no source bands are given, the spectral bands of this sensor contained in " +
+                    "the source product are used. Bands of the same raster size and tile layout, e.g. the 10 m, " +
+                    "20 m and 60 m bands of Sentinel-2 MSI, are processed as one group with shared tile reads.")
+    private Sensor sensor;
+
     @Parameter(label = "Mask expression for dark object search area", converter = BooleanExpressionConverter.class,
             description = "Mask expression for dark object search area.")
     private String maskExpression;
 
-    @Parameter(label = "Percentile of minimum in image data", valueSet = {"0", "1", "5"},
+    @Parameter(label = "Percentile of minimum in image data", interval = "[0,100]",
             description = "Percentile of minimum in image data in percent " +
-                    "(the number means how many percent of the image data are lower than detected minimum.")
-    private int histogramMinimumPercentile;
+                    "(the number means how many percent of the image data are lower than detected minimum. " +
+                    "Any value in [0,100] is accepted, e.g. 0.1 or 0.01.")
+    private double histogramMinimumPercentile;
+
+    @Parameter(label = "Statistics method", valueSet = {STATISTICS_METHOD_HISTOGRAM, STATISTICS_METHOD_QUANTILE_SKETCH},
+            defaultValue = STATISTICS_METHOD_HISTOGRAM,
+            description = "Method to estimate the dark object values: a histogram (exact in raw counts for " +
+                    "8/16 bit integer bands) or a mergeable streaming quantile sketch with bounded memory, accurate " +
+                    "to 0.1% of the value at any percentile.")
+    private String statisticsMethod;
+
+    @Parameter(label = "Degree of parallelism", defaultValue = "0",
+            description = "Number of threads used for the dark object statistics " +
+                    "(0 means the number of available processors).")
+    private int parallelism;
+
+    @Parameter(label = "Apply dark object value as scaling offset", defaultValue = "false",
+            description = "If set, the raw source data are kept unchanged and the dark object value is only applied " +
+                    "as adjusted scaling offset of the target band. The dark object values are then computed " +
+                    "already when the operator is initialised.")
+    private boolean subtractViaScalingOffset;
+
+    @Parameter(label = "Resolution level for statistics", defaultValue = "0", interval = "[0,10]",
+            description = "Resolution level of the multi-level source images the dark object values are estimated " +
+                    "from (0 = full resolution, each level halves the resolution).")
+    private int statisticsLevel;
+
+    @Parameter(label = "Pixel sampling step for statistics", defaultValue = "1", interval = "[1,64]",
+            description = "Only every n-th pixel in x and y direction is used to estimate the dark object values " +
+                    "(e.g. 4 means 1 of every 16 pixels). If the statistics are estimated from a sample, the " +
+                    "estimated sampling error is written to the metadata as well.")
+    private int statisticsSamplingStep;
+
+    @Parameter(label = "Memory budget for statistics (MB)", defaultValue = "0", interval = "[0,*]",
+            description = "If greater than 0, the dark object statistics are computed within this memory: the source " +
+                    "tiles are streamed without being added to the shared JAI tile cache, and fewer threads are " +
+                    "used if their buffers would not fit. If 0, the tiles are read through the tile cache.")
+    private int statisticsMemoryBudget;
+
+    @Parameter(label = "Progressive estimation", defaultValue = "false",
+            description = "If set, first estimates of the dark object values are computed from the coarsest " +
+                    "resolution level and refined level by level down to the resolution level for statistics. " +
+                    "Each estimate is passed to the estimate listeners registered via the API and shown in the " +
+                    "progress monitor text, and the estimation can be cancelled at any level. The coarser levels " +
+                    "add about a third to the statistics work, so this only pays off for API callers which " +
+                    "register a listener; the standard processing dialog does not.")
+    private boolean progressiveEstimation;
+
+    @Parameter(label = "Dark object cache directory",
+            description = "Directory of a persistent cache of dark object values, keyed by product file, band, " +
+                    "valid pixel expression, no-data value, scaling and size of the band, mask expression and " +
+                    "statistics settings. On a cache hit the statistics pass is skipped. The cache is only used " +
+                    "for products read directly from a file, not for subsets or derived products. " +
+                    "If not set, no cache is used.")
+    private File cacheDirectory;
+
+    @Parameter(label = "Maximum number of cache entries", defaultValue = "10000", interval = "[1,*]",
+            description = "Maximum number of entries in the dark object cache. " +
+                    "The least recently used entries are removed first.")
+    private int cacheMaxEntries;
+
+    @Parameter(label = "Percentiles for parameter sweep",
+            description = "Optional list of percentiles (in percent) for a parameter sweep. The dark object values " +
+                    "of all these percentiles, and of all sweep mask expressions, are computed from the same " +
+                    "statistics pass and written to the metadata group '" + SWEEP_METADATA_GROUP_NAME + "'. " +
+                    "All percentiles must be in [0,100]. " +
+                    "The subtraction itself uses the percentile of minimum and the mask expression given above.")
+    private double[] sweepPercentiles;
+
+    @Parameter(label = "Mask expressions for parameter sweep",
+            description = "Optional list of further mask expressions for a parameter sweep, evaluated in addition " +
+                    "to the mask expression given above, in the same statistics pass.")
+    private String[] sweepMaskExpressions;
+
+    @Parameter(label = "Write performance metrics to metadata", defaultValue = "false",
+            description = "If set, the performance metrics of the mask and statistics phases (time, pixels, tiles " +
+                    "and bytes allocated per phase and band) are written to the target product metadata. The " +
+                    "subtraction runs after the metadata is complete, its totals are logged when the operator is " +
+                    "disposed. The metrics of all phases are always available via JMX.")
+    private boolean writeMetricsToMetadata;
+
+    @Parameter(label = "Window size for spatially varying dark object", defaultValue = "0", interval = "[0,*]",
+            description = "If greater than 0, the dark object value is computed separately for square windows of " +
+                    "this size (in scene raster pixels) and interpolated smoothly between the window centres, " +
+                    "e.g. for haze which varies across the scene. The window values are written to the metadata " +
+                    "group '" + GRID_METADATA_GROUP_NAME + "'. " +
+                    "If 0, one dark object value is used for the whole image.")
+    private int windowSize;
+
+    @Parameter(label = "Output data type", valueSet = {OUTPUT_TYPE_FLOAT32, OUTPUT_TYPE_INT16, OUTPUT_TYPE_UINT16},
+            defaultValue = OUTPUT_TYPE_FLOAT32,
+            description = "Data type of the subtracted target bands. The integer types are scaled with the output " +
+                    "scaling factor and use the no-data values 65535 (uint16) and -32768 (int16), float32 uses " +
+                    "NaN, so that a result of zero stays valid. uint16 requires negative values to be clamped. " +
+                    "Bands to which the dark object value is applied as scaling offset keep the data type of the " +
+                    "source band.")
+    private String outputDataType;
 
+    @Parameter(label = "Scaling factor of integer output", defaultValue = "1.0E-4",
+            description = "Scaling factor of int16 and uint16 target bands, e.g. 1.0E-4 for reflectances.")
+    private double outputScalingFactor;
+
+    @Parameter(label = "Clamp negative values at zero", defaultValue = "false",
+            description = "If set, negative values after the subtraction are set to zero.")
+    private boolean clampNegativeValues;
 
     @SourceProduct(description = "Source product containing spectral bands.")
     private Product sourceProduct;
@@ -52,22 +184,58 @@ public class DarkObjectSubtractionOp extends Operator {
     @TargetProduct
     private Product targetProduct;
 
-    private final static String DARK_OBJECT_METADATA_GROUP_NAME = "Dark Object Spectral Values";
+    final static String STATISTICS_METHOD_HISTOGRAM = "HISTOGRAM";
+    final static String STATISTICS_METHOD_QUANTILE_SKETCH = "QUANTILE_SKETCH";
+
+    final static String OUTPUT_TYPE_FLOAT32 = "float32";
+    final static String OUTPUT_TYPE_INT16 = "int16";
+    final static String OUTPUT_TYPE_UINT16 = "uint16";
+
+    final static String DARK_OBJECT_METADATA_GROUP_NAME = "Dark Object Spectral Values";
+
+    final static String SAMPLING_ERROR_ATTRIBUTE_SUFFIX = "_sampling_error";
+
+    final static String METRICS_METADATA_GROUP_NAME = "Dark Object Performance Metrics";
+
+    final static String SWEEP_METADATA_GROUP_NAME = "Dark Object Sweep";
+
+    final static String GRID_METADATA_GROUP_NAME = "Dark Object Grid";
 
     private final static String TARGET_PRODUCT_NAME = "Dark-Object-Subtraction";
     private final static String TARGET_PRODUCT_TYPE = "dark-object-subtraction";
 
-    private double[] darkObjectValues;
+    private volatile double[] darkObjectValues;
+
+    // the latest estimate of a progressive estimation, before the final values are available
+    private volatile double[] provisionalDarkObjectValues;
+
+    private final List<EstimateListener> estimateListeners = new CopyOnWriteArrayList<>();
+
+    // the dark object surfaces per source band (constant without a window size) and the encoders of the target
+    // bands, published with the values
+    private DarkObjectGrid[] darkObjectGrids;
+    private TileEncoder[] tileEncoders;
+
+    private int[] spectralBandIndices;
+
+    private ForkJoinPool statisticsPool;
+
+    private final DarkObjectMetrics metrics = new DarkObjectMetrics();
+
+    private final NoDataTiles noDataTiles = new NoDataTiles();
 
     @Override
     public void initialize() throws OperatorException {
         sourceProduct = getSourceProduct();
 
         // validation
-        if (sourceProduct.isMultiSize()) {
-            throw new OperatorException("Cannot (yet) handle multisize products. Consider resampling the product first.");
+        if ((sourceBandNames == null || sourceBandNames.length == 0) && sensor != null) {
+            sourceBandNames = getSensorBandNames();
         }
         if (this.sourceBandNames == null || this.sourceBandNames.length == 0) {
+            if (sensor != null) {
+                throw new OperatorException("Source product contains no spectral band of sensor " + sensor.getName());
+            }
             throw new OperatorException("Please select at least one source band.");
         }
 
@@ -76,37 +244,303 @@ public class DarkObjectSubtractionOp extends Operator {
             throw new OperatorException("Source product has no geo-coding");
         }
 
-        darkObjectValues = new double[sourceBandNames.length];
+        if (windowSize > 0 && subtractViaScalingOffset) {
+            throw new OperatorException("A spatially varying dark object cannot be applied as scaling offset.");
+        }
+
+        if (clampNegativeValues && subtractViaScalingOffset) {
+            throw new OperatorException("Negative values cannot be clamped if the dark object value is applied " +
+                                                "as scaling offset.");
+        }
+        if (OUTPUT_TYPE_UINT16.equals(outputDataType) && !clampNegativeValues && !subtractViaScalingOffset) {
+            throw new OperatorException("Negative values cannot be written as uint16, please clamp them at zero " +
+                                                "or use int16 or float32 output.");
+        }
+        if (!OUTPUT_TYPE_FLOAT32.equals(outputDataType) && !(outputScalingFactor > 0.0)) {
+            throw new OperatorException("The scaling factor of integer output must be positive.");
+        }
+        if (sweepPercentiles != null) {
+            for (double percentile : sweepPercentiles) {
+                if (!(percentile >= 0.0 && percentile <= 100.0)) {
+                    throw new OperatorException("Sweep percentile " + percentile + " is not in [0,100].");
+                }
+            }
+        }
+
+        spectralBandIndices = getSpectralBandIndices();
 
         // set up target product
         targetProduct = createTargetProduct();
 
+        // add new metadata group for dark object values, filled once the values are computed
+        final MetadataElement darkObjectSpectralValueMetadataElement = new MetadataElement(DARK_OBJECT_METADATA_GROUP_NAME);
+        targetProduct.getMetadataRoot().addElement(darkObjectSpectralValueMetadataElement);
+
         setTargetProduct(targetProduct);
 
-        applyDarkObjectSubtraction(null);
+        if (subtractViaScalingOffset) {
+            // the offsets are part of the target product header, so the values are needed right now
+            applyDarkObjectValuesAsScalingOffset();
+        }
     }
 
-    // todo:
-    // The setup with applying the DOS in doExecute with JAI imaging does not yet work reliably.
-    // The reason is that we have not implemented computeTile nor computeTileStack here because it is not needed,
-    // but the framework calls computeTile although it should not do so, and at the time of the call the
-    // source image of the target tile might not yet be set, so we may have empty tiles in the target product.
+    /**
+     * Sets an externally managed pool for the dark object statistics, e.g. a pool shared by several operator
+     * instances in a batch. If set, the {@code parallelism} parameter is ignored.
+     *
+     * @param statisticsPool the pool, or {@code null} to use a pool according to the {@code parallelism} parameter
+     */
+    void setStatisticsPool(ForkJoinPool statisticsPool) {
+        this.statisticsPool = statisticsPool;
+    }
 
-    // The issue must be fixed in GPF. For the time being, the 'applyDarkObjectSubtraction' method is just moved into
-    // initialize, which works fine. A cleaner way would be just to retrieve the DOS constants in doExecute,
-    // and to implement computeTile and do the subtraction manually there.
+    /**
+     * Adds a listener which receives the estimates of a progressive estimation.
+     *
+     * @param listener the listener
+     */
+    public void addEstimateListener(EstimateListener listener) {
+        estimateListeners.add(listener);
+    }
 
-//    @Override
-//    public void doExecute(ProgressMonitor pm) throws OperatorException {
-//        try {
-//            pm.beginTask("Executing dark object subtraction...", 0);
-//            applyDarkObjectSubtraction(pm);
-//        } catch (Exception e) {
-//            throw new OperatorException(e.getMessage(), e);
-//        } finally {
-//            pm.done();
-//        }
-//    }
+    /**
+     * Removes a listener added by {@link #addEstimateListener(EstimateListener)}.
+     *
+     * @param listener the listener
+     */
+    public void removeEstimateListener(EstimateListener listener) {
+        estimateListeners.remove(listener);
+    }
+
+    /**
+     * @return the performance metrics of this operator instance
+     */
+    DarkObjectMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void dispose() {
+        if (writeMetricsToMetadata) {
+            logSubtractionMetrics();
+        }
+        super.dispose();
+    }
+
+    private void logSubtractionMetrics() {
+        final String phase = DarkObjectMetrics.Phase.SUBTRACTION.name();
+        final Long pixels = metrics.getPixels().get(phase);
+        if (pixels != null) {
+            getLogger().info("Dark object subtraction: " + pixels + " pixels in " +
+                                     metrics.getTiles().get(phase) + " tiles, " +
+                                     String.format("%.1f", metrics.getTimeMillis().get(phase)) + " ms summed " +
+                                     "over all threads");
+        }
+    }
+
+    // The dark object values are retrieved in doExecute, or lazily with the first tile request if the framework
+    // does not call doExecute before computing tiles. The subtraction itself is done in computeTileStack, or in
+    // computeTile if the framework requests the bands separately (e.g. for bands of different size).
+
+    @Override
+    public void doExecute(ProgressMonitor pm) throws OperatorException {
+        try {
+            pm.beginTask("Executing dark object subtraction...", 1);
+            ensureDarkObjectValues(SubProgressMonitor.create(pm, 1));
+        } catch (OperatorException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new OperatorException(e.getMessage(), e);
+        } finally {
+            pm.done();
+        }
+    }
+
+    @Override
+    public void computeTileStack(Map<Band, Tile> targetTiles, Rectangle targetRectangle, ProgressMonitor pm)
+            throws OperatorException {
+        ensureDarkObjectValues(ProgressMonitor.NULL);
+
+        pm.beginTask("Subtracting dark object values...", spectralBandIndices.length);
+        try {
+            for (int spectralBandIndex : spectralBandIndices) {
+                checkForCancellation();
+                final String bandName = sourceBandNames[spectralBandIndex];
+                final Tile targetTile = targetTiles.get(targetProduct.getBand(bandName));
+                if (targetTile != null) {
+                    final DarkObjectMetrics.Start start = DarkObjectMetrics.start();
+                    // for multi-size products the tile rectangle is given in the band's own raster grid
+                    subtractDarkObjectValue(sourceProduct.getBand(bandName), targetTile, spectralBandIndex);
+                    recordSubtraction(bandName, start, targetTile);
+                }
+                pm.worked(1);
+            }
+        } finally {
+            pm.done();
+        }
+    }
+
+    @Override
+    public void computeTile(Band targetBand, Tile targetTile, ProgressMonitor pm) throws OperatorException {
+        ensureDarkObjectValues(ProgressMonitor.NULL);
+        for (int spectralBandIndex : spectralBandIndices) {
+            if (sourceBandNames[spectralBandIndex].equals(targetBand.getName())) {
+                final DarkObjectMetrics.Start start = DarkObjectMetrics.start();
+                subtractDarkObjectValue(sourceProduct.getBand(targetBand.getName()), targetTile, spectralBandIndex);
+                recordSubtraction(targetBand.getName(), start, targetTile);
+                return;
+            }
+        }
+    }
+
+    private void subtractDarkObjectValue(Band sourceBand, Tile targetTile, int spectralBandIndex) {
+        final TileEncoder encoder = tileEncoders[spectralBandIndex];
+        final Rectangle rect = targetTile.getRectangle();
+        if (Boolean.TRUE.equals(noDataTiles.getCached(sourceBand, rect))) {
+            // known from a statistics pass at full resolution, the source tile is not even requested
+            encoder.fillNoData(targetTile);
+        } else {
+            final Tile sourceTile = getSourceTile(sourceBand, rect);
+            final Raster validMask = sourceBand.isValidMaskUsed() ?
+                    DarkObjectStatistics.getTileOrData(sourceBand.getValidMaskImage(), rect) : null;
+            subtractDarkObject(sourceBand, sourceTile, validMask, targetTile, darkObjectGrids[spectralBandIndex],
+                               encoder, clampNegativeValues);
+        }
+    }
+
+    private void recordSubtraction(String bandName, DarkObjectMetrics.Start start, Tile targetTile) {
+        final long numPixels = (long) targetTile.getWidth() * targetTile.getHeight();
+        metrics.record(DarkObjectMetrics.Phase.SUBTRACTION, bandName, start, numPixels, 1);
+    }
+
+    /**
+     * Writes the geophysical source samples minus the dark object value into the target tile, working directly
+     * on the primitive tile buffers. Each source row is read from the typed raw buffer once, and subtraction,
+     * optional clamping at zero, no-data propagation and the encoding into the data type of the target band are
+     * done in one pass over the row, without allocations. Invalid source pixels are set to the no-data value of
+     * the target band (or NaN, if no no-data value is used with a float32 target).
+     * <p>
+     * For integer targets the values are divided by the scaling factor of the target band, rounded, and clipped
+     * to the valid range of the data type, excluding the no-data value.
+     *
+     * @param sourceBand    the source band
+     * @param sourceTile    the source tile, covering at least the target tile
+     * @param validMask     the valid mask of the source band, covering at least the target tile (non-zero samples
+     *                      for valid pixels), or {@code null} if all pixels are valid
+     * @param targetTile    the float32, int16 or uint16 target tile
+     * @param grid          the dark object surface in geophysical units, in the raster grid of the band
+     * @param encoder       the encoder of the target band
+     * @param clampNegative if negative results shall be set to zero
+     */
+    private static void subtractDarkObject(Band sourceBand, Tile sourceTile, Raster validMask, Tile targetTile,
+                                           DarkObjectGrid grid, TileEncoder encoder, boolean clampNegative) {
+        final boolean linearScaling = !sourceBand.isLog10Scaled();
+        final double scalingFactor = sourceBand.getScalingFactor();
+        final double scalingOffset = sourceBand.getScalingOffset();
+        final int sourceDataType = sourceBand.getDataType();
+
+        final Object sourceData = sourceTile.getDataBuffer().getElems();
+        final Object targetData = encoder.getBuffer(targetTile);
+        final int sourceStride = sourceTile.getScanlineStride();
+        final int targetStride = targetTile.getScanlineStride();
+        final int width = targetTile.getWidth();
+        final double[] darkObjectValues = new double[width];
+        final double[] columnValues = new double[grid.getNumWindowsX()];
+        final double[] rowValues = new double[width];
+        final int[] validRow = validMask != null ? new int[width] : null;
+
+        final int minX = targetTile.getMinX();
+        final int minY = targetTile.getMinY();
+        final int maxY = targetTile.getMaxY();
+        for (int y = minY; y <= maxY; y++) {
+            grid.getRow(y, minX, darkObjectValues, columnValues);
+            final int sourceIndex = sourceTile.getScanlineOffset() + (y - sourceTile.getMinY()) * sourceStride +
+                    (minX - sourceTile.getMinX());
+            readRawRow(sourceData, sourceDataType, sourceIndex, rowValues);
+            if (validRow != null) {
+                validMask.getSamples(minX, y, width, 1, 0, validRow);
+            }
+            for (int i = 0; i < width; i++) {
+                double value;
+                if (validRow != null && validRow[i] == 0) {
+                    value = Double.NaN;
+                } else if (linearScaling) {
+                    value = rowValues[i] * scalingFactor + scalingOffset - darkObjectValues[i];
+                } else {
+                    value = sourceBand.scale(rowValues[i]) - darkObjectValues[i];
+                }
+                if (clampNegative && value < 0.0) {
+                    value = 0.0;
+                }
+                rowValues[i] = value;
+            }
+            encoder.encodeRow(rowValues, targetData, targetTile.getScanlineOffset() + (y - minY) * targetStride);
+        }
+    }
+
+    /**
+     * Reads a row of raw samples from the primitive buffer of a tile, taking the unsigned data types into account.
+     */
+    private static void readRawRow(Object data, int dataType, int index, double[] row) {
+        switch (dataType) {
+            case ProductData.TYPE_INT8: {
+                final byte[] bytes = (byte[]) data;
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = bytes[index + i];
+                }
+                break;
+            }
+            case ProductData.TYPE_UINT8: {
+                final byte[] bytes = (byte[]) data;
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = bytes[index + i] & 0xFF;
+                }
+                break;
+            }
+            case ProductData.TYPE_INT16: {
+                final short[] shorts = (short[]) data;
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = shorts[index + i];
+                }
+                break;
+            }
+            case ProductData.TYPE_UINT16: {
+                final short[] shorts = (short[]) data;
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = shorts[index + i] & 0xFFFF;
+                }
+                break;
+            }
+            case ProductData.TYPE_INT32: {
+                final int[] ints = (int[]) data;
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = ints[index + i];
+                }
+                break;
+            }
+            case ProductData.TYPE_UINT32: {
+                final int[] ints = (int[]) data;
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = ints[index + i] & 0xFFFFFFFFL;
+                }
+                break;
+            }
+            case ProductData.TYPE_FLOAT32: {
+                final float[] floats = (float[]) data;
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = floats[index + i];
+                }
+                break;
+            }
+            case ProductData.TYPE_FLOAT64: {
+                final double[] doubles = (double[]) data;
+                System.arraycopy(doubles, index, row, 0, row.length);
+                break;
+            }
+            default:
+                throw new OperatorException("Unsupported source data type: " + ProductData.getTypeString(dataType));
+        }
+    }
 
     static RenderedOp subtractConstantFromImage(RenderedImage image, double constantValue) {
         // Create the constant values.
@@ -130,75 +564,510 @@ public class DarkObjectSubtractionOp extends Operator {
         return h.getHighValue()[0];
     }
 
-    static double getHistogramMinAtPercentile(Stx stx, int percentile) {
+    static double getHistogramMinAtPercentile(Stx stx, double percentile) {
         final Histogram h = stx.getHistogram();
         final double highValue = h.getHighValue()[0];
         final double lowValue = h.getLowValue()[0];
         final int numBins = h.getNumBins(0);
+        final int[] bins = h.getBins(0);
+        final double threshold = percentile * h.getTotals()[0] / 100.0;
 
         double sum = 0.0;
         for (int i = 0; i < numBins; i++) {
             final double binValue = lowValue + i * (highValue - lowValue) / (numBins - 1);
-            sum += h.getBins()[0][i];
-            if (sum >= percentile * h.getTotals()[0] / 100.0) {
+            sum += bins[i];
+            if (sum >= threshold) {
                 return binValue;
             }
         }
         return 0;
     }
 
-    private void applyDarkObjectSubtraction(ProgressMonitor pm) {
-        // add new metadata group for dark object values
-        final MetadataElement darkObjectSpectralValueMetadataElement = new MetadataElement(DARK_OBJECT_METADATA_GROUP_NAME);
-        targetProduct.getMetadataRoot().addElement(darkObjectSpectralValueMetadataElement);
+    private void applyDarkObjectValuesAsScalingOffset() {
+        final double[] values = ensureDarkObjectValues(ProgressMonitor.NULL);
+        for (int spectralBandIndex : spectralBandIndices) {
+            final Band sourceBand = sourceProduct.getBand(sourceBandNames[spectralBandIndex]);
+            if (isSubtractedViaScalingOffset(sourceBand)) {
+                final Band targetBand = targetProduct.getBand(sourceBand.getName());
+                targetBand.setScalingOffset(sourceBand.getScalingOffset() - values[spectralBandIndex]);
+                // no pixel is touched, the raw source raster is shared
+                targetBand.setSourceImage(sourceBand.getSourceImage());
+            }
+        }
+    }
 
-        for (int i = 0; i < sourceBandNames.length; i++) {
-            final String sourceBandName = sourceBandNames[i];
-            checkForCancellation();
-            System.out.println("sourceBandName = " + sourceBandName);
-            Band sourceBand = sourceProduct.getBand(sourceBandName);
+    private boolean isSubtractedViaScalingOffset(Band sourceBand) {
+        // a constant offset in geophysical units cannot be expressed for log-scaled bands
+        return subtractViaScalingOffset && !sourceBand.isLog10Scaled();
+    }
 
-            if (sourceBand.getSpectralWavelength() > 0) {
-                Stx stx;
-                if (maskExpression == null || maskExpression.isEmpty()) {
-                    final long t1 = System.currentTimeMillis();
-                    System.out.println("computing histogram without Mask...");
-                    stx = new StxFactory().create(sourceBand, ProgressMonitor.NULL);
-                    final long t2 = System.currentTimeMillis();
-                    System.out.println("computation time for stx without Mask: " + (t2 - t1) + " ms");
-                } else {
-                    final long t1 = System.currentTimeMillis();
-                    System.out.println("computing histogram with Mask...");
-                    Mask mask = new Mask("m", sourceBand.getRasterWidth(), sourceBand.getRasterHeight(),
-                                         Mask.BandMathsType.INSTANCE);
-                    Mask.BandMathsType.setExpression(mask, maskExpression);
-                    sourceProduct.getMaskGroup().add(mask);
-                    stx = new StxFactory().withRoiMask(mask).create(sourceBand, ProgressMonitor.NULL);
-                    final long t2 = System.currentTimeMillis();
-                    System.out.println("computation time for stx with Mask: " + (t2 - t1) + " ms");
+    private double[] ensureDarkObjectValues(ProgressMonitor pm) {
+        double[] values = darkObjectValues;
+        if (values == null) {
+            synchronized (this) {
+                values = darkObjectValues;
+                if (values == null) {
+                    values = computeDarkObjectValues(pm);
+                    createSubtractionState(values);
+                    darkObjectValues = values;
+                }
+            }
+        }
+        return values;
+    }
+
+    // the grids and encoders are shared by all tiles of a band
+    private void createSubtractionState(double[] values) {
+        if (darkObjectGrids == null) {
+            darkObjectGrids = new DarkObjectGrid[sourceBandNames.length];
+        }
+        tileEncoders = new TileEncoder[sourceBandNames.length];
+        for (int spectralBandIndex : spectralBandIndices) {
+            if (darkObjectGrids[spectralBandIndex] == null) {
+                darkObjectGrids[spectralBandIndex] = DarkObjectGrid.constant(values[spectralBandIndex]);
+            }
+            final Band sourceBand = sourceProduct.getBand(sourceBandNames[spectralBandIndex]);
+            if (!isSubtractedViaScalingOffset(sourceBand)) {
+                tileEncoders[spectralBandIndex] = new TileEncoder(targetProduct.getBand(sourceBand.getName()));
+            }
+        }
+    }
+
+    private double[] computeDarkObjectValues(ProgressMonitor pm) {
+        final double[] values = new double[sourceBandNames.length];
+        final double[] samplingErrors = new double[sourceBandNames.length];
+        Arrays.fill(samplingErrors, Double.NaN);
+
+        // look up cached values first, only the remaining bands need statistics; a sweep or a grid needs all bands
+        final String[] cacheKeys = new String[sourceBandNames.length];
+        final DarkObjectCache cache = windowSize == 0 ? createCache(cacheKeys) : null;
+        final MetadataElement gridElement = windowSize > 0 ? new MetadataElement(GRID_METADATA_GROUP_NAME) : null;
+        if (gridElement != null) {
+            darkObjectGrids = new DarkObjectGrid[sourceBandNames.length];
+        }
+        final MetadataElement sweepElement = isSweep() ? createSweepElement() : null;
+        final List<Integer> uncachedIndices = new ArrayList<>();
+        for (int spectralBandIndex : spectralBandIndices) {
+            final DarkObjectCache.Entry entry = cache != null && sweepElement == null ?
+                    cache.get(cacheKeys[spectralBandIndex]) : null;
+            if (entry != null) {
+                values[spectralBandIndex] = entry.getDarkObjectValue();
+                samplingErrors[spectralBandIndex] = entry.getSamplingError();
+            } else {
+                uncachedIndices.add(spectralBandIndex);
+            }
+        }
+
+        // all spectral bands of the same raster size and tile layout are read in one common pass over the tiles
+        final List<List<Integer>> bandGroups = groupByTileLayout(uncachedIndices);
+        pm.beginTask("Computing dark object statistics...", bandGroups.size());
+        try {
+            for (List<Integer> bandGroup : bandGroups) {
+                final String groupLabel = getGroupLabel(bandGroup);
+                pm.setSubTaskName(groupLabel);
+                getLogger().fine("Computing dark object statistics of " + groupLabel);
+                computeDarkObjectValues(bandGroup, values, samplingErrors, cache, cacheKeys, sweepElement,
+                                        gridElement, SubProgressMonitor.create(pm, 1));
+            }
+        } finally {
+            pm.done();
+        }
+
+        final MetadataElement darkObjectSpectralValueMetadataElement =
+                targetProduct.getMetadataRoot().getElement(DARK_OBJECT_METADATA_GROUP_NAME);
+        for (int spectralBandIndex : spectralBandIndices) {
+            final String sourceBandName = sourceBandNames[spectralBandIndex];
+            getLogger().fine("Dark object value for '" + sourceBandName + "': " + values[spectralBandIndex]);
+
+            // add dark object value to metadata
+            final MetadataAttribute dosAttr = new MetadataAttribute(sourceBandName,
+                                              ProductData.createInstance(new double[]{values[spectralBandIndex]}), true);
+            darkObjectSpectralValueMetadataElement.addAttribute(dosAttr);
+            if (!Double.isNaN(samplingErrors[spectralBandIndex])) {
+                final MetadataAttribute errorAttr =
+                        new MetadataAttribute(sourceBandName + SAMPLING_ERROR_ATTRIBUTE_SUFFIX,
+                                              ProductData.createInstance(new double[]{samplingErrors[spectralBandIndex]}),
+                                              true);
+                darkObjectSpectralValueMetadataElement.addAttribute(errorAttr);
+            }
+        }
+        if (sweepElement != null) {
+            targetProduct.getMetadataRoot().addElement(sweepElement);
+        }
+        if (gridElement != null) {
+            targetProduct.getMetadataRoot().addElement(gridElement);
+        }
+        if (writeMetricsToMetadata) {
+            addMetricsMetadata();
+        }
+        return values;
+    }
+
+    private void addMetricsMetadata() {
+        final MetadataElement metricsElement = new MetadataElement(METRICS_METADATA_GROUP_NAME);
+        final Map<String, Double> timeMillis = metrics.getTimeMillis();
+        final Map<String, Long> pixels = metrics.getPixels();
+        final Map<String, Double> pixelsPerSecond = metrics.getPixelsPerSecond();
+        final Map<String, Long> tiles = metrics.getTiles();
+        final Map<String, Long> bytesAllocated = metrics.getBytesAllocated();
+        for (String key : timeMillis.keySet()) {
+            // the later phases have not even started when the dark object values become available
+            if (!isPhase(key, DarkObjectMetrics.Phase.MASK) && !isPhase(key, DarkObjectMetrics.Phase.STATISTICS)) {
+                continue;
+            }
+            final MetadataElement element = new MetadataElement(key);
+            element.addAttribute(createAttribute("time_ms", ProductData.createInstance(new double[]{timeMillis.get(key)})));
+            element.addAttribute(createAttribute("pixels", ProductData.createInstance(new long[]{pixels.get(key)})));
+            element.addAttribute(createAttribute("pixels_per_second",
+                                                 ProductData.createInstance(new double[]{pixelsPerSecond.get(key)})));
+            element.addAttribute(createAttribute("tiles", ProductData.createInstance(new long[]{tiles.get(key)})));
+            if (bytesAllocated.containsKey(key)) {
+                element.addAttribute(createAttribute("bytes_allocated",
+                                                     ProductData.createInstance(new long[]{bytesAllocated.get(key)})));
+            }
+            metricsElement.addElement(element);
+        }
+        targetProduct.getMetadataRoot().addElement(metricsElement);
+    }
+
+    private static boolean isPhase(String metricsKey, DarkObjectMetrics.Phase phase) {
+        return metricsKey.equals(phase.name()) || metricsKey.startsWith(phase.name() + ":");
+    }
+
+    private static MetadataAttribute createAttribute(String name, ProductData data) {
+        return new MetadataAttribute(name, data, true);
+    }
+
+    private void computeDarkObjectValues(List<Integer> bandIndices, double[] values, double[] samplingErrors,
+                                         DarkObjectCache cache, String[] cacheKeys, MetadataElement sweepElement,
+                                         MetadataElement gridElement, ProgressMonitor pm) {
+        final Band[] spectralBands = new Band[bandIndices.size()];
+        for (int i = 0; i < spectralBands.length; i++) {
+            spectralBands[i] = sourceProduct.getBand(sourceBandNames[bandIndices.get(i)]);
+        }
+
+        // the first search area is the one of the subtraction, followed by the ones of a sweep
+        final String[] expressions = getMaskExpressions(sweepElement != null);
+        final RenderedImage[] roiImages = new RenderedImage[expressions.length];
+        for (int r = 0; r < expressions.length; r++) {
+            roiImages[r] = createRoiImage(expressions[r], spectralBands[0]);
+        }
+
+        final int bandWindowSize = getBandWindowSize(spectralBands[0]);
+
+        // a progressive estimation runs over the coarser levels first, each taking a quarter of the next one's time
+        final int levelCount = spectralBands[0].getSourceImage().getModel().getLevelCount();
+        final int finalLevel = Math.min(statisticsLevel, levelCount - 1);
+        final int coarsestLevel = progressiveEstimation ? levelCount - 1 : finalLevel;
+        int totalWork = 0;
+        for (int level = coarsestLevel; level >= finalLevel; level--) {
+            totalWork += 1 << 2 * (coarsestLevel - level);
+        }
+        pm.beginTask("Computing dark object statistics...", totalWork);
+        final DarkObjectStatistics statistics;
+        final DarkObjectAccumulator[][][] accumulatorGrid;
+        // the pixels, tiles and allocations are recorded per band by the workers, the wall-clock time here
+        final DarkObjectMetrics.Start start = DarkObjectMetrics.start();
+        try {
+            for (int level = coarsestLevel; level > finalLevel; level--) {
+                estimateDarkObjectValues(spectralBands, bandIndices, roiImages[0], level,
+                                         SubProgressMonitor.create(pm, 1 << 2 * (coarsestLevel - level)));
+            }
+
+            statistics = createStatistics(spectralBands, roiImages, finalLevel);
+            statistics.setRoiExpressions(expressions);
+            statistics.setNoDataTiles(noDataTiles);
+            statistics.setWindowSize(bandWindowSize);
+            accumulatorGrid = statistics.computeAccumulatorGrid(
+                    SubProgressMonitor.create(pm, 1 << 2 * (coarsestLevel - finalLevel)));
+            checkForCancellation(pm);
+        } finally {
+            metrics.recordSection(DarkObjectMetrics.Phase.STATISTICS, start, 0, 0);
+            pm.done();
+        }
+        final DarkObjectAccumulator[][] accumulatorSets = new DarkObjectAccumulator[accumulatorGrid.length][];
+        for (int r = 0; r < accumulatorGrid.length; r++) {
+            accumulatorSets[r] = DarkObjectStatistics.getImageAccumulators(accumulatorGrid[r]);
+        }
+        final DarkObjectAccumulator[] accumulators = accumulatorSets[0];
+
+        if (sweepElement != null) {
+            final double[] percentiles = getSweepPercentiles();
+            for (int r = 0; r < accumulatorSets.length; r++) {
+                final MetadataElement maskElement = sweepElement.getElementAt(r);
+                for (int p = 0; p < percentiles.length; p++) {
+                    final MetadataElement percentileElement = maskElement.getElementAt(p);
+                    for (int i = 0; i < spectralBands.length; i++) {
+                        final double value = statistics.getDarkObjectValue(i, accumulatorSets[r][i], percentiles[p]);
+                        percentileElement.addAttribute(createAttribute(spectralBands[i].getName(),
+                                                                       ProductData.createInstance(new double[]{value})));
+                    }
                 }
-                darkObjectValues[i] = getHistogramMinAtPercentile(stx, histogramMinimumPercentile);
-                System.out.println("darkObjectValue for '" + sourceBandName + "' : " + darkObjectValues[i]);
+            }
+        }
+
+        for (int i = 0; i < spectralBands.length; i++) {
+            final int bandIndex = bandIndices.get(i);
+            values[bandIndex] = statistics.getDarkObjectValue(i, accumulators[i], histogramMinimumPercentile);
+            if (statistics.isSampled()) {
+                samplingErrors[bandIndex] = statistics.getSamplingError(i, accumulators[i], histogramMinimumPercentile);
+            }
+            // the partial accumulators of a cancelled pass must never reach the persistent cache
+            if (cache != null && !pm.isCanceled()) {
+                cache.put(cacheKeys[bandIndex], values[bandIndex], samplingErrors[bandIndex]);
+            }
+        }
 
-                final RenderedOp subtractedImage = subtractConstantFromImage(sourceBand.getGeophysicalImage(),
-                                                                             darkObjectValues[i]);
-                targetProduct.getBand(sourceBandName).setSourceImage(subtractedImage);
+        if (gridElement != null) {
+            final int numWindowsX = statistics.getNumWindowsX();
+            final int numWindowsY = statistics.getNumWindowsY();
+            for (int i = 0; i < spectralBands.length; i++) {
+                final int bandIndex = bandIndices.get(i);
+                final double[] windowValues = new double[numWindowsX * numWindowsY];
+                for (int w = 0; w < windowValues.length; w++) {
+                    final DarkObjectAccumulator accumulator = accumulatorGrid[0][w][i];
+                    windowValues[w] = accumulator.getCount() > 0 ?
+                            statistics.getDarkObjectValue(i, accumulator, histogramMinimumPercentile) : Double.NaN;
+                }
+                final DarkObjectGrid grid = new DarkObjectGrid(numWindowsX, numWindowsY, bandWindowSize,
+                                                               windowValues, values[bandIndex]);
+                darkObjectGrids[bandIndex] = grid;
 
-                // add dark object value to metadata
-                final MetadataAttribute dosAttr = new MetadataAttribute(sourceBandName,
-                                                  ProductData.createInstance(new double[]{darkObjectValues[i]}), true);
-                targetProduct.getMetadataRoot().getElement(DARK_OBJECT_METADATA_GROUP_NAME).addAttribute(dosAttr);
+                final MetadataElement bandElement = new MetadataElement(spectralBands[i].getName());
+                bandElement.addAttribute(createAttribute("window_size",
+                                                         ProductData.createInstance(new int[]{bandWindowSize})));
+                bandElement.addAttribute(createAttribute("num_windows_x",
+                                                         ProductData.createInstance(new int[]{numWindowsX})));
+                bandElement.addAttribute(createAttribute("num_windows_y",
+                                                         ProductData.createInstance(new int[]{numWindowsY})));
+                bandElement.addAttribute(createAttribute("window_values",
+                                                         ProductData.createInstance(grid.getValues())));
+                gridElement.addElement(bandElement);
             }
-            if (pm != null) {
-                pm.worked(1);
+        }
+    }
+
+    private DarkObjectStatistics createStatistics(Band[] spectralBands, RenderedImage[] roiImages, int level) {
+        final DarkObjectStatistics statistics = new DarkObjectStatistics(spectralBands, roiImages);
+        statistics.setParallelism(parallelism);
+        statistics.setPool(statisticsPool);
+        statistics.setUseQuantileSketch(STATISTICS_METHOD_QUANTILE_SKETCH.equals(statisticsMethod));
+        statistics.setLevel(level);
+        statistics.setSamplingStep(statisticsSamplingStep);
+        statistics.setMetrics(metrics);
+        statistics.setMemoryBudget(statisticsMemoryBudget * 1024L * 1024L);
+        return statistics;
+    }
+
+    private void estimateDarkObjectValues(Band[] spectralBands, List<Integer> bandIndices, RenderedImage roiImage,
+                                          int level, ProgressMonitor pm) {
+        final DarkObjectStatistics statistics = createStatistics(spectralBands, new RenderedImage[]{roiImage}, level);
+        final DarkObjectAccumulator[] accumulators = statistics.computeAccumulators(pm);
+        checkForCancellation(pm);
+
+        final double[] previousValues = provisionalDarkObjectValues;
+        final double[] values = previousValues != null ? previousValues.clone() : new double[sourceBandNames.length];
+        if (previousValues == null) {
+            Arrays.fill(values, Double.NaN);
+        }
+        final StringBuilder message = new StringBuilder("Dark object estimate at resolution level " + level + ":");
+        for (int i = 0; i < spectralBands.length; i++) {
+            final int bandIndex = bandIndices.get(i);
+            values[bandIndex] = statistics.getDarkObjectValue(i, accumulators[i], histogramMinimumPercentile);
+            message.append(' ').append(spectralBands[i].getName()).append('=').append(values[bandIndex]);
+        }
+        provisionalDarkObjectValues = values;
+        for (EstimateListener listener : estimateListeners) {
+            listener.estimateAvailable(level, sourceBandNames.clone(), values.clone());
+        }
+        pm.setSubTaskName(message.toString());
+        getLogger().fine(message.toString());
+    }
+
+    private void checkForCancellation(ProgressMonitor pm) {
+        // an interrupted statistics pass leaves incomplete accumulators, which must not be used or cached
+        if (pm.isCanceled()) {
+            throw new OperatorException("Dark object estimation cancelled.");
+        }
+        checkForCancellation();
+    }
+
+    private int getBandWindowSize(Band band) {
+        if (windowSize == 0) {
+            return 0;
+        }
+        // the window size is given in scene raster pixels, bands of a multi-size product have their own grid
+        final double scale = (double) band.getRasterWidth() / sourceProduct.getSceneRasterWidth();
+        return Math.max(1, (int) Math.round(windowSize * scale));
+    }
+
+    private boolean isSweep() {
+        return (sweepPercentiles != null && sweepPercentiles.length > 0) ||
+                (sweepMaskExpressions != null && sweepMaskExpressions.length > 0);
+    }
+
+    private double[] getSweepPercentiles() {
+        return sweepPercentiles != null && sweepPercentiles.length > 0 ?
+                sweepPercentiles : new double[]{histogramMinimumPercentile};
+    }
+
+    private String[] getMaskExpressions(boolean sweep) {
+        final List<String> expressions = new ArrayList<>();
+        expressions.add(maskExpression);
+        if (sweep && sweepMaskExpressions != null) {
+            expressions.addAll(Arrays.asList(sweepMaskExpressions));
+        }
+        return expressions.toArray(new String[0]);
+    }
+
+    private MetadataElement createSweepElement() {
+        // one element per mask expression, each with one element per percentile holding the values of all bands
+        final MetadataElement sweepElement = new MetadataElement(SWEEP_METADATA_GROUP_NAME);
+        final String[] expressions = getMaskExpressions(true);
+        for (int r = 0; r < expressions.length; r++) {
+            final MetadataElement maskElement = new MetadataElement("Mask " + r);
+            final String expression = expressions[r] != null ? expressions[r] : "";
+            maskElement.addAttribute(createAttribute("mask_expression", ProductData.createInstance(expression)));
+            for (double percentile : getSweepPercentiles()) {
+                final MetadataElement percentileElement = new MetadataElement("Percentile " + percentile);
+                percentileElement.addAttribute(createAttribute("percentile",
+                                                               ProductData.createInstance(new double[]{percentile})));
+                maskElement.addElement(percentileElement);
+            }
+            sweepElement.addElement(maskElement);
+        }
+        return sweepElement;
+    }
+
+    private List<List<Integer>> groupByTileLayout(List<Integer> bandIndices) {
+        final Map<List<Integer>, List<Integer>> bandGroups = new LinkedHashMap<>();
+        for (int bandIndex : bandIndices) {
+            final Band band = sourceProduct.getBand(sourceBandNames[bandIndex]);
+            final RenderedImage image = band.getSourceImage();
+            final List<Integer> layout = Arrays.asList(band.getRasterWidth(), band.getRasterHeight(),
+                                                       image.getTileWidth(), image.getTileHeight());
+            bandGroups.computeIfAbsent(layout, key -> new ArrayList<>()).add(bandIndex);
+        }
+        final List<List<Integer>> groups = new ArrayList<>(bandGroups.values());
+        if (sensor != null) {
+            // finest native resolution first
+            groups.sort(Comparator.comparingInt(group -> sensor.getResolution(sourceBandNames[group.get(0)])));
+        }
+        return groups;
+    }
+
+    private String getGroupLabel(List<Integer> bandGroup) {
+        final Set<Integer> resolutions = new TreeSet<>();
+        final List<String> bandNames = new ArrayList<>();
+        for (int bandIndex : bandGroup) {
+            bandNames.add(sourceBandNames[bandIndex]);
+            if (sensor != null && sensor.getResolution(sourceBandNames[bandIndex]) > 0) {
+                resolutions.add(sensor.getResolution(sourceBandNames[bandIndex]));
+            }
+        }
+        final StringBuilder label = new StringBuilder();
+        for (int resolution : resolutions) {
+            label.append(label.length() > 0 ? "/" : "").append(resolution).append(" m");
+        }
+        return label.append(label.length() > 0 ? " bands " : "bands ").append(String.join(", ", bandNames)).toString();
+    }
+
+    private String[] getSensorBandNames() {
+        final List<String> bandNames = new ArrayList<>();
+        for (String bandName : sensor.getSpectralBands()) {
+            if (sourceProduct.containsBand(bandName)) {
+                bandNames.add(bandName);
             }
         }
+        return bandNames.toArray(new String[0]);
+    }
+
+    private DarkObjectCache createCache(String[] cacheKeys) {
+        final File productFile = sourceProduct.getFileLocation();
+        if (cacheDirectory == null || productFile == null || !productFile.exists() || !isReadFrom(productFile)) {
+            return null;
+        }
+        String settings = "percentile=" + histogramMinimumPercentile + ";method=" + statisticsMethod +
+                ";level=" + statisticsLevel + ";step=" + statisticsSamplingStep;
+        if (STATISTICS_METHOD_QUANTILE_SKETCH.equals(statisticsMethod)) {
+            settings += ";sketchVersion=" + QuantileSketch.VERSION;
+        }
+        try {
+            for (int spectralBandIndex : spectralBandIndices) {
+                // the valid pixels and the scaling of a band can be changed without changing the product file
+                final Band band = sourceProduct.getBand(sourceBandNames[spectralBandIndex]);
+                final String bandSettings = settings + ";validPixelExpression=" + band.getValidPixelExpression() +
+                        ";noDataValueUsed=" + band.isNoDataValueUsed() + ";noDataValue=" + band.getNoDataValue() +
+                        ";scalingFactor=" + band.getScalingFactor() + ";scalingOffset=" + band.getScalingOffset() +
+                        ";width=" + band.getRasterWidth() + ";height=" + band.getRasterHeight() +
+                        ";viaScalingOffset=" + isSubtractedViaScalingOffset(band);
+                cacheKeys[spectralBandIndex] = DarkObjectCache.createKey(productFile, band.getName(), maskExpression,
+                                                                         bandSettings);
+            }
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING, "Dark object cache not used: " + e.getMessage(), e);
+            return null;
+        }
+        return new DarkObjectCache(cacheDirectory, cacheMaxEntries);
+    }
+
+    // the file location is also kept by subsets and products derived from the product of a file, which have
+    // different pixels, so the cache is used only for the product read from the file itself
+    private boolean isReadFrom(File productFile) {
+        final ProductReader productReader = sourceProduct.getProductReader();
+        if (productReader == null || productReader.getSubsetDef() != null) {
+            return false;
+        }
+        final Object input = productReader.getInput();
+        final File inputFile;
+        if (input instanceof File) {
+            inputFile = (File) input;
+        } else if (input instanceof Path) {
+            inputFile = ((Path) input).toFile();
+        } else if (input instanceof String) {
+            inputFile = new File((String) input);
+        } else {
+            return false;
+        }
+        return inputFile.getAbsoluteFile().equals(productFile.getAbsoluteFile());
+    }
+
+    private int[] getSpectralBandIndices() {
+        int numSpectralBands = 0;
+        final int[] indices = new int[sourceBandNames.length];
+        for (int i = 0; i < sourceBandNames.length; i++) {
+            if (sourceProduct.getBand(sourceBandNames[i]).getSpectralWavelength() > 0) {
+                indices[numSpectralBands++] = i;
+            }
+        }
+        return Arrays.copyOf(indices, numSpectralBands);
+    }
+
+    private RenderedImage createRoiImage(String expression, Band referenceBand) {
+        if (expression == null || expression.isEmpty()) {
+            return null;
+        }
+        // the expression is compiled once into a mask image shared by all bands of a size, without adding a mask
+        // node to the source product. It is evaluated at the resolution of the bands if the rasters it refers to
+        // have that size, otherwise at the resolution of these rasters and mapped to the bands by RoiMask.
+        RasterDataNode maskReference = referenceBand;
+        try {
+            final RasterDataNode[] refRasters = BandArithmetic.getRefRasters(expression, sourceProduct);
+            if (refRasters.length > 0 && !refRasters[0].getRasterSize().equals(referenceBand.getRasterSize())) {
+                maskReference = refRasters[0];
+            }
+        } catch (ParseException e) {
+            throw new OperatorException("Invalid mask expression '" + expression + "': " + e.getMessage(), e);
+        }
+        return sourceProduct.getMaskImage(expression, maskReference);
     }
 
     private Product createTargetProduct() {
         final int sceneWidth = sourceProduct.getSceneRasterWidth();
         final int sceneHeight = sourceProduct.getSceneRasterHeight();
         Product targetProduct = new Product(TARGET_PRODUCT_NAME, TARGET_PRODUCT_TYPE, sceneWidth, sceneHeight);
+        // same tile grid as the source, so the no-data tiles found by the statistics pass match the target tiles
+        targetProduct.setPreferredTileSize(sourceProduct.getPreferredTileSize());
         ProductUtils.copyGeoCoding(sourceProduct, targetProduct);
         ProductUtils.copyFlagCodings(sourceProduct, targetProduct);
         ProductUtils.copyTiePointGrids(sourceProduct, targetProduct);
@@ -210,14 +1079,36 @@ public class DarkObjectSubtractionOp extends Operator {
         for (String sourceBandName : sourceBandNames) {
             Band sourceBand = sourceProduct.getBand(sourceBandName);
             if (sourceBand.getSpectralWavelength() > 0) {
-                final Band targetBand = new Band(sourceBand.getName(), ProductData.TYPE_FLOAT32, sceneWidth, sceneHeight);
+                final Band targetBand;
+                if (isSubtractedViaScalingOffset(sourceBand)) {
+                    targetBand = new Band(sourceBand.getName(), sourceBand.getDataType(),
+                                          sourceBand.getRasterWidth(), sourceBand.getRasterHeight());
+                    targetBand.setScalingFactor(sourceBand.getScalingFactor());
+                    targetBand.setScalingOffset(sourceBand.getScalingOffset());
+                    targetBand.setNoDataValueUsed(sourceBand.isNoDataValueUsed());
+                    targetBand.setNoDataValue(sourceBand.getNoDataValue());
+                } else if (OUTPUT_TYPE_INT16.equals(outputDataType) || OUTPUT_TYPE_UINT16.equals(outputDataType)) {
+                    final boolean signed = OUTPUT_TYPE_INT16.equals(outputDataType);
+                    final int dataType = signed ? ProductData.TYPE_INT16 : ProductData.TYPE_UINT16;
+                    targetBand = new Band(sourceBand.getName(), dataType,
+                                          sourceBand.getRasterWidth(), sourceBand.getRasterHeight());
+                    targetBand.setScalingFactor(outputScalingFactor);
+                    targetBand.setNoDataValueUsed(true);
+                    // zero is a valid result of the subtraction, in particular of clamped pixels
+                    targetBand.setNoDataValue(signed ? Short.MIN_VALUE : 0xFFFF);
+                } else {
+                    targetBand = new Band(sourceBand.getName(), ProductData.TYPE_FLOAT32,
+                                          sourceBand.getRasterWidth(), sourceBand.getRasterHeight());
+                    // the raw no-data value of the source (e.g. 0) is a valid result of the subtraction, in
+                    // particular of clamped pixels
+                    targetBand.setNoDataValueUsed(true);
+                    targetBand.setNoDataValue(Double.NaN);
+                }
                 targetProduct.addBand(targetBand);
                 ProductUtils.copySpectralBandProperties(sourceBand, targetBand);
                 ProductUtils.copyGeoCoding(sourceBand, targetBand);
                 targetBand.setDescription(sourceBand.getDescription());
                 targetBand.setUnit(sourceBand.getUnit());
-                targetBand.setNoDataValueUsed(sourceBand.isNoDataValueUsed());
-                targetBand.setNoDataValue(sourceBand.getNoDataValue());
             } else {
                 ProductUtils.copyBand(sourceBand.getName(), sourceProduct, targetProduct, true);
             }
@@ -225,6 +1116,22 @@ public class DarkObjectSubtractionOp extends Operator {
         return targetProduct;
     }
 
+    /**
+     * Receives the dark object estimates of a progressive estimation, e.g. to display them while the estimation
+     * at the resolution level for statistics is still running.
+     */
+    public interface EstimateListener {
+
+        /**
+         * Called once per coarser resolution level, from the thread running the estimation.
+         *
+         * @param level     the resolution level the estimate has been computed from
+         * @param bandNames the source band names
+         * @param values    the estimates in the order of the band names, NaN for bands not estimated yet
+         */
+        void estimateAvailable(int level, String[] bandNames, double[] values);
+    }
+
     public static class Spi extends OperatorSpi {
 
         public Spi() {
@@ -0,0 +1,147 @@
+package org.esa.snap.dos;
+
+import org.esa.snap.core.datamodel.ProductData;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+
+/**
+ * Exact counting histogram over the raw values of an 8 or 16 bit integer band, with one bin per possible value.
+ * It is filled in a single pass without conversion to floating point, and percentiles are exact in raw counts.
+ *
+ * @author olafd
+ */
+public class IntegerHistogram implements DarkObjectAccumulator {
+
+    private final int minValue;
+    private final long[] counts;
+    private long count;
+    private int[] samples;
+
+    public IntegerHistogram(int minValue, int maxValue) {
+        if (maxValue < minValue) {
+            throw new IllegalArgumentException("maxValue < minValue");
+        }
+        this.minValue = minValue;
+        this.counts = new long[maxValue - minValue + 1];
+    }
+
+    /**
+     * Creates a histogram covering the complete value range of the given raw data type.
+     *
+     * @param dataType the data type, one of the {@code ProductData.TYPE_*INT8/16} constants
+     *
+     * @return the histogram
+     */
+    public static IntegerHistogram create(int dataType) {
+        switch (dataType) {
+            case ProductData.TYPE_INT8:
+                return new IntegerHistogram(Byte.MIN_VALUE, Byte.MAX_VALUE);
+            case ProductData.TYPE_UINT8:
+                return new IntegerHistogram(0, 0xff);
+            case ProductData.TYPE_INT16:
+                return new IntegerHistogram(Short.MIN_VALUE, Short.MAX_VALUE);
+            case ProductData.TYPE_UINT16:
+                return new IntegerHistogram(0, 0xffff);
+            default:
+                throw new IllegalArgumentException("Unsupported data type: " + ProductData.getTypeString(dataType));
+        }
+    }
+
+    /**
+     * @param dataType the raw data type
+     *
+     * @return {@code true} if a histogram can be created for the given type
+     */
+    public static boolean isSupported(int dataType) {
+        return dataType == ProductData.TYPE_INT8 || dataType == ProductData.TYPE_UINT8 ||
+                dataType == ProductData.TYPE_INT16 || dataType == ProductData.TYPE_UINT16;
+    }
+
+    @Override
+    public void accumulate(Raster raster, Rectangle rect, boolean[] validMask) {
+        final int numPixels = rect.width * rect.height;
+        if (samples == null || samples.length < numPixels) {
+            samples = new int[numPixels];
+        }
+        raster.getSamples(rect.x, rect.y, rect.width, rect.height, 0, samples);
+        if (minValue < 0 && raster.getTransferType() == DataBuffer.TYPE_BYTE) {
+            // int8 rasters are stored in unsigned byte buffers, the samples are 0..255
+            for (int i = 0; i < numPixels; i++) {
+                samples[i] = (byte) samples[i];
+            }
+        }
+        accumulate(samples, numPixels, validMask);
+    }
+
+    /**
+     * Adds the first {@code length} raw values of the given array.
+     *
+     * @param values    the raw values
+     * @param length    the number of values
+     * @param validMask flags for the values, only values with a flag set are added; may be {@code null}
+     */
+    public void accumulate(int[] values, int length, boolean[] validMask) {
+        for (int i = 0; i < length; i++) {
+            if (validMask == null || validMask[i]) {
+                counts[values[i] - minValue]++;
+                count++;
+            }
+        }
+    }
+
+    @Override
+    public void merge(DarkObjectAccumulator other) {
+        final IntegerHistogram otherHistogram = (IntegerHistogram) other;
+        if (otherHistogram.minValue != minValue || otherHistogram.counts.length != counts.length) {
+            throw new IllegalArgumentException("Cannot merge histograms with different value ranges.");
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += otherHistogram.counts[i];
+        }
+        count += otherHistogram.count;
+    }
+
+    /**
+     * Returns the smallest raw value for which the cumulative count reaches the given percentage of all values.
+     * For an empty histogram zero is returned.
+     *
+     * @param percentile the percentile in percent (0..100)
+     *
+     * @return the raw value at the given percentile
+     */
+    @Override
+    public double getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0.0;
+        }
+        final double threshold = percentile * count / 100.0;
+        long sum = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) {
+                continue;
+            }
+            sum += counts[i];
+            if (sum >= threshold) {
+                return minValue + i;
+            }
+        }
+        return minValue + counts.length - 1;
+    }
+
+    @Override
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public long getMaxMemorySize() {
+        return 8L * counts.length;
+    }
+
+    @Override
+    public void releaseBuffers() {
+        samples = null;
+    }
+}
@@ -0,0 +1,70 @@
+package org.esa.snap.dos;
+
+import org.esa.snap.core.datamodel.Band;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers which full resolution tiles of the bands contain no valid pixel at all, e.g. in the no-data borders
+ * of Sentinel-2 granules or Landsat scenes. Such tiles are skipped by the statistics pass and filled with the
+ * no-data value by the subtraction without any arithmetic.
+ * <p>
+ * The decision is taken from the full resolution valid mask of a tile by a statistics pass at full resolution,
+ * which reads the valid mask anyway. Coarser pyramid levels of the valid mask are subsampled and could miss single
+ * valid pixels, so they are not used for it. Tiles not recorded by such a pass are not evaluated later: reading
+ * the valid mask only for this decision would cost about as much as the subtraction itself, which handles
+ * invalid pixels anyway.
+ *
+ * @author olafd
+ */
+class NoDataTiles {
+
+    private final Map<String, Map<Rectangle, Boolean>> invalidTiles;
+
+    NoDataTiles() {
+        this.invalidTiles = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Returns whether a tile is known to contain no valid pixel, without evaluating the valid mask.
+     *
+     * @param band     the band
+     * @param tileRect the full resolution tile rectangle
+     *
+     * @return {@code Boolean.TRUE} if the tile has no valid pixel, {@code Boolean.FALSE} if it has, or
+     * {@code null} if it is not known yet
+     */
+    Boolean getCached(Band band, Rectangle tileRect) {
+        final Map<Rectangle, Boolean> bandTiles = invalidTiles.get(band.getName());
+        return bandTiles != null ? bandTiles.get(tileRect) : null;
+    }
+
+    /**
+     * Records whether a tile contains no valid pixel, as found by a pass which reads the valid mask anyway.
+     *
+     * @param band        the band
+     * @param tileRect    the full resolution tile rectangle
+     * @param validRaster the valid mask raster of the tile
+     *
+     * @return {@code true} if the tile has no valid pixel
+     */
+    boolean update(Band band, Rectangle tileRect, Raster validRaster) {
+        final boolean invalid = !containsValidPixel(validRaster, tileRect);
+        invalidTiles.computeIfAbsent(band.getName(), name -> new ConcurrentHashMap<>()).put(tileRect, invalid);
+        return invalid;
+    }
+
+    private static boolean containsValidPixel(Raster validRaster, Rectangle rect) {
+        for (int y = rect.y; y < rect.y + rect.height; y++) {
+            for (int x = rect.x; x < rect.x + rect.width; x++) {
+                if (validRaster.getSample(x, y, 0) != 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
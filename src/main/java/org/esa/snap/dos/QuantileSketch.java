@@ -0,0 +1,293 @@
+package org.esa.snap.dos;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.util.Arrays;
+
+/**
+ * Mergeable streaming quantile sketch with bounded memory, for arbitrary (also sub-percent) percentiles.
+ * <p>
+ * The sketch combines two parts:
+ * <ul>
+ * <li>a relative error sketch (DDSketch, Masson, Rim, Lee 2019), i.e. counts of logarithmically spaced buckets.
+ * The value returned for any percentile is within the given relative accuracy of the exact value, however small
+ * the rank of the percentile is compared to the number of samples.</li>
+ * <li>an exact buffer of the smallest samples seen so far. Low percentiles whose rank falls into this buffer are
+ * answered exactly.</li>
+ * </ul>
+ * The number of buckets is bounded. If the values span more buckets, the buckets of the largest values are
+ * collapsed, so the accuracy of the low percentiles relevant for dark objects is kept.
+ * <p>
+ * Merging only adds bucket counts and keeps the smallest samples of both buffers, so the result does not depend
+ * on the order in which samples are added or partial sketches are merged.
+ *
+ * @author olafd
+ */
+public class QuantileSketch implements DarkObjectAccumulator {
+
+    /**
+     * The version of the sketch algorithm. It is part of the keys of persistent dark object values computed with
+     * the sketch, so values of an earlier algorithm are not reused.
+     */
+    static final int VERSION = 2;
+
+    static final double DEFAULT_RELATIVE_ACCURACY = 1.0E-3;
+    static final int DEFAULT_MAX_NUM_BUCKETS = 8192;
+    static final int DEFAULT_TAIL_CAPACITY = 16384;
+
+    private final double relativeAccuracy;
+    private final int maxNumBuckets;
+    private final int tailCapacity;
+    private final double logGamma;
+
+    // buckets of the positive values and of the magnitudes of the negative values
+    private final Buckets positiveBuckets;
+    private final Buckets negativeBuckets;
+    private long zeroCount;
+
+    // max-heap of the smallest samples
+    private double[] tail;
+    private int tailSize;
+
+    private long count;
+    private double[] samples;
+
+    public QuantileSketch() {
+        this(DEFAULT_RELATIVE_ACCURACY, DEFAULT_MAX_NUM_BUCKETS, DEFAULT_TAIL_CAPACITY);
+    }
+
+    /**
+     * @param relativeAccuracy the relative accuracy of the values returned for percentiles beyond the exact buffer
+     * @param maxNumBuckets    the maximum number of buckets for positive and for negative values each
+     * @param tailCapacity     the number of smallest samples which are kept exactly
+     */
+    public QuantileSketch(double relativeAccuracy, int maxNumBuckets, int tailCapacity) {
+        if (!(relativeAccuracy > 0.0 && relativeAccuracy < 1.0)) {
+            throw new IllegalArgumentException("relativeAccuracy not in (0,1)");
+        }
+        if (maxNumBuckets < 2) {
+            throw new IllegalArgumentException("maxNumBuckets < 2");
+        }
+        this.relativeAccuracy = relativeAccuracy;
+        this.maxNumBuckets = maxNumBuckets;
+        this.tailCapacity = Math.max(0, tailCapacity);
+        this.logGamma = Math.log((1.0 + relativeAccuracy) / (1.0 - relativeAccuracy));
+        // large values are collapsed for positive values, values close to zero for negative ones
+        this.positiveBuckets = new Buckets(maxNumBuckets, true);
+        this.negativeBuckets = new Buckets(maxNumBuckets, false);
+        this.tail = new double[Math.min(this.tailCapacity, 256)];
+    }
+
+    @Override
+    public void accumulate(Raster raster, Rectangle rect, boolean[] validMask) {
+        final int numPixels = rect.width * rect.height;
+        if (samples == null || samples.length < numPixels) {
+            samples = new double[numPixels];
+        }
+        raster.getSamples(rect.x, rect.y, rect.width, rect.height, 0, samples);
+        for (int i = 0; i < numPixels; i++) {
+            if (validMask == null || validMask[i]) {
+                add(samples[i]);
+            }
+        }
+    }
+
+    /**
+     * Adds a single value. NaN and infinite values are ignored.
+     *
+     * @param value the value
+     */
+    public void add(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return;
+        }
+        if (value > 0.0) {
+            positiveBuckets.add(getIndex(value), 1);
+        } else if (value < 0.0) {
+            negativeBuckets.add(getIndex(-value), 1);
+        } else {
+            zeroCount++;
+        }
+        count++;
+        addToTail(value);
+    }
+
+    @Override
+    public void merge(DarkObjectAccumulator accumulator) {
+        final QuantileSketch other = (QuantileSketch) accumulator;
+        if (other.relativeAccuracy != relativeAccuracy || other.maxNumBuckets != maxNumBuckets ||
+                other.tailCapacity != tailCapacity) {
+            throw new IllegalArgumentException("Cannot merge sketches with different parameters.");
+        }
+        positiveBuckets.merge(other.positiveBuckets);
+        negativeBuckets.merge(other.negativeBuckets);
+        zeroCount += other.zeroCount;
+        count += other.count;
+        for (int i = 0; i < other.tailSize; i++) {
+            addToTail(other.tail[i]);
+        }
+    }
+
+    /**
+     * Returns the smallest value for which the number of values less or equal reaches the given percentage of all
+     * values, exactly if its rank is within the buffer of the smallest values, and within the relative accuracy
+     * of the sketch otherwise. For an empty sketch zero is returned.
+     *
+     * @param percentile the percentile in percent (0..100)
+     *
+     * @return the value at the given percentile
+     */
+    @Override
+    public double getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0.0;
+        }
+        final long rank = Math.max(1L, (long) Math.ceil(percentile * count / 100.0));
+        if (rank <= tailSize) {
+            final double[] sortedTail = Arrays.copyOf(tail, tailSize);
+            Arrays.sort(sortedTail);
+            return sortedTail[(int) (rank - 1)];
+        }
+
+        // negative values from the largest magnitude down, then zeros, then positive values upwards
+        long sum = 0;
+        for (int i = negativeBuckets.counts.length - 1; i >= 0; i--) {
+            sum += negativeBuckets.counts[i];
+            if (sum >= rank) {
+                return -getValue(negativeBuckets.offset + i);
+            }
+        }
+        sum += zeroCount;
+        if (sum >= rank) {
+            return 0.0;
+        }
+        for (int i = 0; i < positiveBuckets.counts.length; i++) {
+            sum += positiveBuckets.counts[i];
+            if (sum >= rank) {
+                return getValue(positiveBuckets.offset + i);
+            }
+        }
+        return getValue(positiveBuckets.offset + positiveBuckets.counts.length - 1);
+    }
+
+    @Override
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public long getMaxMemorySize() {
+        return 8L * (tailCapacity + 2L * maxNumBuckets);
+    }
+
+    @Override
+    public void releaseBuffers() {
+        samples = null;
+    }
+
+    /**
+     * @return the number of buckets currently allocated by the sketch (without the exact tail buffer)
+     */
+    public int getNumBuckets() {
+        return positiveBuckets.counts.length + negativeBuckets.counts.length;
+    }
+
+    // the bucket with index i holds the magnitudes in (gamma^(i-1), gamma^i]
+    private int getIndex(double magnitude) {
+        return (int) Math.ceil(Math.log(magnitude) / logGamma);
+    }
+
+    // the value within relative accuracy of all magnitudes of the bucket
+    private double getValue(int index) {
+        return Math.exp(index * logGamma) * (1.0 - relativeAccuracy);
+    }
+
+    private void addToTail(double value) {
+        if (tailSize < tailCapacity) {
+            if (tailSize == tail.length) {
+                tail = Arrays.copyOf(tail, Math.min(tailCapacity, 2 * tail.length));
+            }
+            // sift up
+            int i = tailSize++;
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                if (tail[parent] >= value) {
+                    break;
+                }
+                tail[i] = tail[parent];
+                i = parent;
+            }
+            tail[i] = value;
+        } else if (tailCapacity > 0 && value < tail[0]) {
+            // replace the largest retained value and sift down
+            int i = 0;
+            while (true) {
+                final int left = 2 * i + 1;
+                if (left >= tailSize) {
+                    break;
+                }
+                final int right = left + 1;
+                final int larger = right < tailSize && tail[right] > tail[left] ? right : left;
+                if (tail[larger] <= value) {
+                    break;
+                }
+                tail[i] = tail[larger];
+                i = larger;
+            }
+            tail[i] = value;
+        }
+    }
+
+    /**
+     * Contiguous bucket counts of bounded length. Buckets beyond the bound are collapsed into the last bucket
+     * (collapsing the largest indices) or into the first one (collapsing the smallest indices). Each count ends up
+     * in the bucket given by the final index range alone, regardless of the order of the additions.
+     */
+    private static class Buckets {
+
+        private final int maxLength;
+        private final boolean collapseHighest;
+
+        private long[] counts = new long[0];
+        // the index of the first bucket
+        private int offset;
+
+        Buckets(int maxLength, boolean collapseHighest) {
+            this.maxLength = maxLength;
+            this.collapseHighest = collapseHighest;
+        }
+
+        void add(int index, long n) {
+            if (counts.length == 0) {
+                counts = new long[1];
+                offset = index;
+            } else if (index < offset || index >= offset + counts.length) {
+                resize(Math.min(offset, index), Math.max(offset + counts.length - 1, index));
+            }
+            counts[Math.max(0, Math.min(counts.length - 1, index - offset))] += n;
+        }
+
+        void merge(Buckets other) {
+            for (int i = 0; i < other.counts.length; i++) {
+                if (other.counts[i] > 0) {
+                    add(other.offset + i, other.counts[i]);
+                }
+            }
+        }
+
+        private void resize(int minIndex, int maxIndex) {
+            final int length = (int) Math.min(maxLength, (long) maxIndex - minIndex + 1);
+            final int newOffset = collapseHighest ? minIndex : maxIndex - length + 1;
+            if (newOffset == offset && length == counts.length) {
+                // already at the maximum length, the index is collapsed
+                return;
+            }
+            final long[] newCounts = new long[length];
+            for (int i = 0; i < counts.length; i++) {
+                newCounts[Math.max(0, Math.min(length - 1, offset + i - newOffset))] += counts[i];
+            }
+            counts = newCounts;
+            offset = newOffset;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package org.esa.snap.dos;
+
+import com.bc.ceres.glevel.MultiLevelImage;
+import org.esa.snap.core.dataop.barithm.BandArithmetic;
+import org.esa.snap.core.dataop.barithm.RasterDataEvalEnv;
+import org.esa.snap.core.dataop.barithm.RasterDataSymbol;
+import org.esa.snap.core.datamodel.Mask;
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.datamodel.ProductData;
+import org.esa.snap.core.datamodel.RasterDataNode;
+import org.esa.snap.core.datamodel.VirtualBand;
+import org.esa.snap.core.jexp.ParseException;
+import org.esa.snap.core.jexp.Term;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+
+/**
+ * Evaluates a boolean band maths expression (a valid pixel expression or a mask expression) on the raw source
+ * tiles of the rasters it refers to, read without adding them to the shared JAI tile cache (see
+ * {@link UncachedTiles}).
+ * <p>
+ * The mask image of an expression is an operation image which reads the tiles of the referenced rasters through
+ * the tile cache. With a memory budget, the statistics pass evaluates the expression itself instead. This is only
+ * done at full resolution, since pixel coordinates in the expression refer to the full resolution grid, and only if
+ * all referenced rasters have the size of the grid and do not read further rasters. Masks and virtual bands
+ * computed from other rasters read them through the cache, so expressions referring to them have to use the mask
+ * image.
+ * <p>
+ * The term is parsed per tile: its symbols hold the data of the tile being evaluated, and parsing is negligible
+ * compared to evaluating all pixels of a tile.
+ *
+ * @author olafd
+ */
+class RawExpression {
+
+    private final Product product;
+    private final String expression;
+
+    /**
+     * @param product    the product the expression refers to
+     * @param expression the expression
+     */
+    RawExpression(Product product, String expression) {
+        this.product = product;
+        this.expression = expression;
+    }
+
+    /**
+     * @param product    the product the expression refers to, may be {@code null}
+     * @param expression the expression
+     * @param rasterSize the size of the raster grid the expression is evaluated on
+     * @param level      the resolution level of the raw tiles
+     *
+     * @return {@code true} if the expression can be evaluated on raw tiles at the given level
+     */
+    static boolean isApplicable(Product product, String expression, Dimension rasterSize, int level) {
+        if (level > 0 || product == null) {
+            return false;
+        }
+        try {
+            for (RasterDataNode raster : BandArithmetic.getRefRasters(expression, product)) {
+                if (!raster.getRasterSize().equals(rasterSize) || readsOtherRasters(raster, product)) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (ParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Evaluates the expression for the pixels of a rectangle.
+     *
+     * @param rect           the rectangle
+     * @param knownRaster    a raster whose raw values are already available, may be {@code null}
+     * @param knownRawValues the raw values of that raster in the rectangle, may be {@code null}
+     *
+     * @return the result of the expression per pixel, in row-major order of the rectangle
+     */
+    boolean[] evaluate(Rectangle rect, RasterDataNode knownRaster, double[] knownRawValues) {
+        final Term term = parse();
+        for (RasterDataSymbol symbol : BandArithmetic.getRefRasterDataSymbols(term)) {
+            symbol.setData(getSymbolValues(symbol, rect, knownRaster, knownRawValues));
+        }
+        final RasterDataEvalEnv env = new RasterDataEvalEnv(rect.x, rect.y, rect.width, rect.height);
+        final boolean[] result = new boolean[rect.width * rect.height];
+        for (int i = 0; i < result.length; i++) {
+            env.setElemIndex(i);
+            result[i] = term.evalB(env);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the raw values of a raster, correcting the sign of the data types stored in buffers of a different
+     * signedness.
+     *
+     * @param raster    the raster data node
+     * @param rawRaster the raw data, covering at least the rectangle
+     * @param rect      the rectangle
+     *
+     * @return the raw values in row-major order of the rectangle
+     */
+    static double[] getRawValues(RasterDataNode raster, Raster rawRaster, Rectangle rect) {
+        final double[] values = rawRaster.getSamples(rect.x, rect.y, rect.width, rect.height, 0, (double[]) null);
+        final int dataType = raster.getDataType();
+        if (dataType == ProductData.TYPE_INT8) {
+            // stored in unsigned byte buffers
+            for (int i = 0; i < values.length; i++) {
+                values[i] = (byte) values[i];
+            }
+        } else if (dataType == ProductData.TYPE_UINT32) {
+            // stored in signed int buffers
+            for (int i = 0; i < values.length; i++) {
+                values[i] = values[i] < 0 ? values[i] + 0x1p32 : values[i];
+            }
+        }
+        return values;
+    }
+
+    private static boolean readsOtherRasters(RasterDataNode raster, Product product) throws ParseException {
+        final String expression;
+        if (raster instanceof VirtualBand) {
+            expression = ((VirtualBand) raster).getExpression();
+        } else if (raster instanceof Mask) {
+            final Mask mask = (Mask) raster;
+            if (!(mask.getImageType() instanceof Mask.BandMathsType)) {
+                return true;
+            }
+            expression = Mask.BandMathsType.getExpression(mask);
+        } else {
+            return false;
+        }
+        return BandArithmetic.getRefRasters(expression, product).length > 0;
+    }
+
+    private Term parse() {
+        try {
+            return product.parseExpression(expression);
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Invalid expression '" + expression + "'", e);
+        }
+    }
+
+    private static double[] getSymbolValues(RasterDataSymbol symbol, Rectangle rect, RasterDataNode knownRaster,
+                                            double[] knownRawValues) {
+        final RasterDataNode raster = symbol.getRaster();
+        double[] values;
+        if (raster == knownRaster && knownRawValues != null) {
+            values = knownRawValues.clone();
+        } else {
+            final RenderedImage image = ((MultiLevelImage) raster.getSourceImage()).getImage(0);
+            values = getRawValues(raster, UncachedTiles.getData(image, rect), rect);
+        }
+        if (symbol.getSource() == RasterDataSymbol.GEOPHYSICAL) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = raster.scale(values[i]);
+            }
+        }
+        return values;
+    }
+}
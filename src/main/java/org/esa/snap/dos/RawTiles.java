@@ -0,0 +1,107 @@
+package org.esa.snap.dos;
+
+import org.esa.snap.core.datamodel.Band;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * Derives the valid mask and the geophysical values of a band from its raw source tiles alone.
+ * <p>
+ * The valid mask image and the geophysical image of a band are operation images on top of its raw source image,
+ * so reading them pulls the raw tiles into the shared JAI tile cache, even if their own tiles bypass it (see
+ * {@link UncachedTiles}). With a memory budget, the statistics pass therefore reads only the raw tile of a band and
+ * evaluates the no-data value and the valid pixel expression of the band on it. Further rasters referenced by the
+ * expression are read from their own raw source images in the same way, see {@link RawExpression} for the
+ * expressions this applies to. Otherwise the valid mask image of the band has to be used.
+ *
+ * @author olafd
+ */
+class RawTiles {
+
+    private final Band band;
+    private final RawExpression validExpression;
+
+    /**
+     * @param band the band
+     */
+    RawTiles(Band band) {
+        this.band = band;
+        this.validExpression = hasValidPixelExpression(band) ?
+                new RawExpression(band.getProduct(), band.getValidPixelExpression()) : null;
+    }
+
+    /**
+     * @param band  the band
+     * @param level the resolution level of the raw tiles
+     *
+     * @return {@code true} if the valid mask of the band can be derived from raw tiles at the given level
+     */
+    static boolean isApplicable(Band band, int level) {
+        return !hasValidPixelExpression(band) ||
+                RawExpression.isApplicable(band.getProduct(), band.getValidPixelExpression(), band.getRasterSize(),
+                                           level);
+    }
+
+    /**
+     * Computes the valid mask of a tile.
+     *
+     * @param rawRaster the raw data of the band, covering at least the tile
+     * @param rect      the tile rectangle
+     *
+     * @return the valid mask raster of the tile (non-zero samples for valid pixels), or {@code null} if the band
+     * has neither a no-data value nor a valid pixel expression
+     */
+    Raster getValidMask(Raster rawRaster, Rectangle rect) {
+        final boolean noDataValueUsed = band.isNoDataValueUsed();
+        if (!noDataValueUsed && validExpression == null) {
+            return null;
+        }
+        final double noDataValue = band.getNoDataValue();
+        final double[] rawValues = RawExpression.getRawValues(band, rawRaster, rect);
+        final boolean[] expressionValid = validExpression != null ?
+                validExpression.evaluate(rect, band, rawValues) : null;
+        final WritableRaster validMask = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, rect.width, rect.height, 1,
+                                                                   new Point(rect.x, rect.y));
+        for (int y = 0, i = 0; y < rect.height; y++) {
+            for (int x = 0; x < rect.width; x++, i++) {
+                final boolean valid = (!noDataValueUsed || !isNoData(rawValues[i], noDataValue)) &&
+                        (expressionValid == null || expressionValid[i]);
+                validMask.setSample(rect.x + x, rect.y + y, 0, valid ? 1 : 0);
+            }
+        }
+        return validMask;
+    }
+
+    /**
+     * Converts raw data into geophysical values.
+     *
+     * @param rawRaster the raw data of the band, covering at least the rectangle
+     * @param rect      the rectangle
+     *
+     * @return the geophysical values of the rectangle, in double precision
+     */
+    Raster getGeophysicalData(Raster rawRaster, Rectangle rect) {
+        final double[] values = RawExpression.getRawValues(band, rawRaster, rect);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = band.scale(values[i]);
+        }
+        final WritableRaster raster = Raster.createWritableRaster(
+                new BandedSampleModel(DataBuffer.TYPE_DOUBLE, rect.width, rect.height, 1), new Point(rect.x, rect.y));
+        raster.setSamples(rect.x, rect.y, rect.width, rect.height, 0, values);
+        return raster;
+    }
+
+    private static boolean isNoData(double rawValue, double noDataValue) {
+        return Double.isNaN(noDataValue) ? Double.isNaN(rawValue) : rawValue == noDataValue;
+    }
+
+    private static boolean hasValidPixelExpression(Band band) {
+        final String expression = band.getValidPixelExpression();
+        return expression != null && !expression.trim().isEmpty();
+    }
+}
@@ -0,0 +1,160 @@
+package org.esa.snap.dos;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+
+/**
+ * Region of interest for the dark object search, evaluated once per tile from a mask image into packed bits (one
+ * bit per pixel). The caller requests the bits once per tile and shares them among all bands, so the mask
+ * expression is evaluated only once per tile. The bits are not retained, so the memory does not grow with the
+ * scene size. Tiles which are completely outside or inside the region are represented by shared constants without
+ * any bit storage.
+ * <p>
+ * If the mask image has a different size than the rasters it is applied to (multi-size products), the mask is
+ * mapped to the raster grid by nearest neighbour.
+ * <p>
+ * Alternatively, the region can be given by an expression evaluated on the raw tiles of the rasters it refers to
+ * (see {@link RawExpression}), so neither the mask image nor the referenced rasters go through the tile cache.
+ *
+ * @author olafd
+ */
+class RoiMask {
+
+    private final RenderedImage maskImage;
+    private final RawExpression expression;
+    private final int width;
+    private final int height;
+    private boolean bypassTileCache;
+
+    /**
+     * @param maskImage the mask image, non-zero samples are inside the region
+     */
+    RoiMask(RenderedImage maskImage) {
+        this(maskImage, maskImage.getWidth(), maskImage.getHeight());
+    }
+
+    /**
+     * @param maskImage the mask image, non-zero samples are inside the region
+     * @param width     the width of the raster grid the region is applied to
+     * @param height    the height of the raster grid the region is applied to
+     */
+    RoiMask(RenderedImage maskImage, int width, int height) {
+        this.maskImage = maskImage;
+        this.expression = null;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * @param expression the region expression, evaluated on the grid the region is applied to
+     */
+    RoiMask(RawExpression expression) {
+        this.maskImage = null;
+        this.expression = expression;
+        this.width = 0;
+        this.height = 0;
+    }
+
+    /**
+     * Sets whether the mask tiles are read without adding them to the JAI tile cache, see {@link UncachedTiles}.
+     * The default is {@code false}.
+     *
+     * @param bypassTileCache whether to bypass the tile cache
+     */
+    void setBypassTileCache(boolean bypassTileCache) {
+        this.bypassTileCache = bypassTileCache;
+    }
+
+    /**
+     * Computes the packed region bits of the given rectangle.
+     *
+     * @param rect the rectangle, usually a tile rectangle
+     *
+     * @return the region bits
+     */
+    TileBits getTileBits(Rectangle rect) {
+        if (expression != null) {
+            return createTileBits(expression.evaluate(rect, null, null));
+        }
+        // pixel centres of the raster grid mapped to the mask grid
+        final int[] maskX = new int[rect.width];
+        final int[] maskY = new int[rect.height];
+        for (int i = 0; i < rect.width; i++) {
+            maskX[i] = mapCoordinate(rect.x + i, width, maskImage.getMinX(), maskImage.getWidth());
+        }
+        for (int i = 0; i < rect.height; i++) {
+            maskY[i] = mapCoordinate(rect.y + i, height, maskImage.getMinY(), maskImage.getHeight());
+        }
+        final Rectangle maskRect = new Rectangle(maskX[0], maskY[0],
+                                                 maskX[rect.width - 1] - maskX[0] + 1,
+                                                 maskY[rect.height - 1] - maskY[0] + 1);
+        final Raster raster = bypassTileCache ?
+                UncachedTiles.getData(maskImage, maskRect) : maskImage.getData(maskRect);
+
+        final boolean[] inside = new boolean[rect.width * rect.height];
+        int index = 0;
+        for (int j = 0; j < rect.height; j++) {
+            for (int i = 0; i < rect.width; i++, index++) {
+                inside[index] = raster.getSample(maskX[i], maskY[j], 0) != 0;
+            }
+        }
+        return createTileBits(inside);
+    }
+
+    private static TileBits createTileBits(boolean[] inside) {
+        final int numPixels = inside.length;
+        final long[] bits = new long[(numPixels + 63) >>> 6];
+        int count = 0;
+        for (int index = 0; index < numPixels; index++) {
+            if (inside[index]) {
+                bits[index >>> 6] |= 1L << index;
+                count++;
+            }
+        }
+        if (count == 0) {
+            return TileBits.NONE;
+        } else if (count == numPixels) {
+            return TileBits.ALL;
+        }
+        return new TileBits(bits);
+    }
+
+    private static int mapCoordinate(int coordinate, int size, int maskMin, int maskSize) {
+        if (size == maskSize) {
+            return coordinate;
+        }
+        final int maskCoordinate = maskMin + (int) ((coordinate + 0.5) * maskSize / size);
+        return Math.min(maskMin + maskSize - 1, Math.max(maskMin, maskCoordinate));
+    }
+
+    /**
+     * The packed region bits of a tile, in row-major order of the tile pixels.
+     */
+    static final class TileBits {
+
+        static final TileBits NONE = new TileBits(null);
+        static final TileBits ALL = new TileBits(null);
+
+        private final long[] bits;
+
+        private TileBits(long[] bits) {
+            this.bits = bits;
+        }
+
+        boolean isEmpty() {
+            return this == NONE;
+        }
+
+        boolean isFull() {
+            return this == ALL;
+        }
+
+        boolean get(int index) {
+            if (bits == null) {
+                return this == ALL;
+            }
+            return (bits[index >>> 6] & (1L << index)) != 0;
+        }
+    }
+}
@@ -4,20 +4,26 @@ import static org.esa.snap.dos.SensorConstants.*;
 
 /**
  * Enumeration for supported sensors for Dark Object Subtraction operator.
+ * <p>
+ * Each sensor lists its spectral bands together with their native resolutions. Bands of the same resolution
+ * share the raster size and tile layout in the original products and are processed as one group.
  *
  * @author olafd
  */
 public enum Sensor {
 
-    S2_MSI("S2_MSI", S2_MSI_SPECTRAL_BANDS),
-    LANDSAT_TM("LANDSAT_TM", LANDSAT_TM_SPECTRAL_BANDS);
+    S2_MSI("S2_MSI", S2_MSI_SPECTRAL_BANDS, S2_MSI_SPECTRAL_BAND_RESOLUTIONS),
+    LANDSAT_TM("LANDSAT_TM", LANDSAT_TM_SPECTRAL_BANDS, LANDSAT_TM_SPECTRAL_BAND_RESOLUTIONS),
+    LANDSAT8_OLI("LANDSAT8_OLI", LANDSAT8_OLI_SPECTRAL_BANDS, LANDSAT8_OLI_SPECTRAL_BAND_RESOLUTIONS);
 
     private String name;
     private String[] spectralBands;
+    private int[] resolutions;
 
-    Sensor(String name, String[] spectralBands) {
+    Sensor(String name, String[] spectralBands, int[] resolutions) {
         this.name = name;
         this.spectralBands = spectralBands;
+        this.resolutions = resolutions;
     }
 
     public String getName() {
@@ -27,4 +33,18 @@ public enum Sensor {
     public String[] getSpectralBands() {
         return spectralBands;
     }
+
+    /**
+     * @param bandName the name of a spectral band
+     *
+     * @return the native resolution of the band in metres, or 0 if it is not a spectral band of this sensor
+     */
+    public int getResolution(String bandName) {
+        for (int i = 0; i < spectralBands.length; i++) {
+            if (spectralBands[i].equals(bandName)) {
+                return resolutions[i];
+            }
+        }
+        return 0;
+    }
 }
@@ -11,8 +11,25 @@ public class SensorConstants {
             "B1", "B2", "B3", "B4", "B5", "B6", "B7", "B8", "B8A", "B9", "B10", "B11", "B12"
     };
 
+    public final static int[] S2_MSI_SPECTRAL_BAND_RESOLUTIONS = {
+            60, 10, 10, 10, 20, 20, 20, 10, 20, 60, 60, 20, 20
+    };
+
     public final static String[] LANDSAT_TM_SPECTRAL_BANDS = {
             "Coastal aerosol", "Blue", "Green", "Red", "Near Infrared", "SWIR 1", "SWIR 2"
     };
 
+    public final static int[] LANDSAT_TM_SPECTRAL_BAND_RESOLUTIONS = {
+            30, 30, 30, 30, 30, 30, 30
+    };
+
+    // the reflective bands only: the panchromatic band has another grid, and the cirrus band sees no dark surface
+    public final static String[] LANDSAT8_OLI_SPECTRAL_BANDS = {
+            "coastal_aerosol", "blue", "green", "red", "near_infrared", "swir_1", "swir_2"
+    };
+
+    public final static int[] LANDSAT8_OLI_SPECTRAL_BAND_RESOLUTIONS = {
+            30, 30, 30, 30, 30, 30, 30
+    };
+
 }
@@ -0,0 +1,114 @@
+package org.esa.snap.dos;
+
+import org.esa.snap.core.datamodel.Band;
+import org.esa.snap.core.datamodel.ProductData;
+import org.esa.snap.core.gpf.OperatorException;
+import org.esa.snap.core.gpf.Tile;
+
+import java.util.Arrays;
+
+/**
+ * Writes rows of geophysical values into the primitive buffer of a float32, int16 or uint16 target tile.
+ * NaN marks invalid pixels, which are set to the no-data value of the target band.
+ * <p>
+ * Integer values are divided by the scaling factor of the target band, rounded and clipped to the valid range
+ * of the data type. The no-data value itself is excluded from that range, so valid pixels never become no-data.
+ * <p>
+ * An encoder only depends on the target band, so it is created once per band and shared by all tiles.
+ *
+ * @author olafd
+ */
+class TileEncoder {
+
+    private final boolean floatTarget;
+    private final float floatNoDataValue;
+    private final short shortNoDataValue;
+    private final double inverseScalingFactor;
+    private final double scalingOffset;
+    private final double minRawValue;
+    private final double maxRawValue;
+
+    TileEncoder(Band targetBand) {
+        final int dataType = targetBand.getDataType();
+        inverseScalingFactor = 1.0 / targetBand.getScalingFactor();
+        scalingOffset = targetBand.getScalingOffset();
+        final boolean noDataValueUsed = targetBand.isNoDataValueUsed();
+        final double noDataValue = targetBand.getNoDataValue();
+        switch (dataType) {
+            case ProductData.TYPE_FLOAT32:
+                floatTarget = true;
+                floatNoDataValue = noDataValueUsed ? (float) noDataValue : Float.NaN;
+                shortNoDataValue = 0;
+                minRawValue = Double.NEGATIVE_INFINITY;
+                maxRawValue = Double.POSITIVE_INFINITY;
+                break;
+            case ProductData.TYPE_INT16:
+            case ProductData.TYPE_UINT16:
+                floatTarget = false;
+                floatNoDataValue = Float.NaN;
+                shortNoDataValue = (short) (int) noDataValue;
+                final double min = dataType == ProductData.TYPE_INT16 ? Short.MIN_VALUE : 0;
+                final double max = dataType == ProductData.TYPE_INT16 ? Short.MAX_VALUE : 0xFFFF;
+                minRawValue = noDataValueUsed && noDataValue == min ? min + 1 : min;
+                maxRawValue = noDataValueUsed && noDataValue == max ? max - 1 : max;
+                break;
+            default:
+                throw new OperatorException("Unsupported target data type: " + ProductData.getTypeString(dataType));
+        }
+    }
+
+    /**
+     * @param targetTile a tile of the target band
+     *
+     * @return the primitive buffer of the tile, to be passed to {@link #encodeRow}
+     */
+    Object getBuffer(Tile targetTile) {
+        return floatTarget ? targetTile.getDataBufferFloat() : targetTile.getDataBufferShort();
+    }
+
+    /**
+     * @param values      the geophysical values of the row, NaN for invalid pixels
+     * @param buffer      the buffer of the target tile, as returned by {@link #getBuffer}
+     * @param targetIndex the buffer index of the first pixel of the row
+     */
+    void encodeRow(double[] values, Object buffer, int targetIndex) {
+        if (floatTarget) {
+            final float[] floatData = (float[]) buffer;
+            for (int i = 0; i < values.length; i++) {
+                final double value = values[i];
+                floatData[targetIndex + i] = Double.isNaN(value) ? floatNoDataValue : (float) value;
+            }
+        } else {
+            final short[] shortData = (short[]) buffer;
+            for (int i = 0; i < values.length; i++) {
+                final double value = values[i];
+                if (Double.isNaN(value)) {
+                    shortData[targetIndex + i] = shortNoDataValue;
+                } else {
+                    final double raw = Math.rint((value - scalingOffset) * inverseScalingFactor);
+                    // uint16 values above 32767 are stored as negative shorts, as in the raster buffers
+                    shortData[targetIndex + i] = (short) (int) Math.max(minRawValue, Math.min(maxRawValue, raw));
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills a target tile with the no-data value of the target band (or NaN, if no no-data value is used with a
+     * float32 target).
+     *
+     * @param targetTile the target tile
+     */
+    void fillNoData(Tile targetTile) {
+        final Object buffer = getBuffer(targetTile);
+        final int stride = targetTile.getScanlineStride();
+        for (int y = 0; y < targetTile.getHeight(); y++) {
+            final int index = targetTile.getScanlineOffset() + y * stride;
+            if (floatTarget) {
+                Arrays.fill((float[]) buffer, index, index + targetTile.getWidth(), floatNoDataValue);
+            } else {
+                Arrays.fill((short[]) buffer, index, index + targetTile.getWidth(), shortNoDataValue);
+            }
+        }
+    }
+}
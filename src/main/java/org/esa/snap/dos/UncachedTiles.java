@@ -0,0 +1,48 @@
+package org.esa.snap.dos;
+
+import javax.media.jai.OpImage;
+import javax.media.jai.RenderedOp;
+import javax.media.jai.TileCache;
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+
+/**
+ * Reads image data for a single pass over the tiles without adding the tiles to the shared JAI tile cache.
+ * <p>
+ * A tile which is already in the cache is used from there. Otherwise it is computed directly by the operation
+ * image and handed to the caller only, so a statistics pass over a large product does not evict tiles which
+ * other operators of the same graph still need. The sources of the operation image are still read through the
+ * cache as usual.
+ *
+ * @author olafd
+ */
+class UncachedTiles {
+
+    private UncachedTiles() {
+    }
+
+    /**
+     * Returns the data of a rectangle, which must lie within a single tile of the image to bypass the cache.
+     * Rectangles spanning several tiles are read via {@link RenderedImage#getData(Rectangle)}.
+     *
+     * @param image the image
+     * @param rect  the rectangle
+     *
+     * @return a raster containing at least the rectangle, in the coordinates of the image
+     */
+    static Raster getData(RenderedImage image, Rectangle rect) {
+        final RenderedImage rendering = image instanceof RenderedOp ? ((RenderedOp) image).getRendering() : image;
+        if (rendering instanceof OpImage) {
+            final OpImage opImage = (OpImage) rendering;
+            final int tileX = opImage.XToTileX(rect.x);
+            final int tileY = opImage.YToTileY(rect.y);
+            if (opImage.getTileRect(tileX, tileY).contains(rect)) {
+                final TileCache tileCache = opImage.getTileCache();
+                final Raster cachedTile = tileCache != null ? tileCache.getTile(opImage, tileX, tileY) : null;
+                return cachedTile != null ? cachedTile : opImage.computeTile(tileX, tileY);
+            }
+        }
+        return image.getData(rect);
+    }
+}
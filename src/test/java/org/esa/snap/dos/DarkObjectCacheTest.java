@@ -0,0 +1,101 @@
+package org.esa.snap.dos;
+
+import org.esa.snap.core.util.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DarkObjectCacheTest {
+
+    private File cacheDirectory;
+    private File productFile;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheDirectory = Files.createTempDirectory("dos_cache").toFile();
+        productFile = File.createTempFile("product", ".dim");
+        Files.write(productFile.toPath(), new byte[]{1, 2, 3});
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteTree(cacheDirectory);
+        productFile.delete();
+    }
+
+    @Test
+    public void testPutAndGet() throws IOException {
+        final DarkObjectCache cache = new DarkObjectCache(cacheDirectory, 10);
+        final String key = DarkObjectCache.createKey(productFile, "B2", "B8 > 0", "percentile=1.0");
+        assertNull(cache.get(key));
+
+        cache.put(key, 0.0123, Double.NaN);
+        final DarkObjectCache.Entry entry = cache.get(key);
+        assertNotNull(entry);
+        assertEquals(0.0123, entry.getDarkObjectValue(), 0.0);
+        assertTrue(Double.isNaN(entry.getSamplingError()));
+
+        // other band, mask or settings do not match
+        assertNull(cache.get(DarkObjectCache.createKey(productFile, "B3", "B8 > 0", "percentile=1.0")));
+        assertNull(cache.get(DarkObjectCache.createKey(productFile, "B2", null, "percentile=1.0")));
+        assertNull(cache.get(DarkObjectCache.createKey(productFile, "B2", "B8 > 0", "percentile=5.0")));
+    }
+
+    @Test
+    public void testChangedProductFileDoesNotMatch() throws IOException {
+        final DarkObjectCache cache = new DarkObjectCache(cacheDirectory, 10);
+        cache.put(DarkObjectCache.createKey(productFile, "B2", null, ""), 0.5, 0.01);
+
+        Files.write(productFile.toPath(), new byte[]{1, 2, 3, 4});
+        assertNull(cache.get(DarkObjectCache.createKey(productFile, "B2", null, "")));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntriesAreEvicted() throws IOException {
+        final DarkObjectCache cache = new DarkObjectCache(cacheDirectory, 2);
+        final String key1 = DarkObjectCache.createKey(productFile, "B1", null, "");
+        final String key2 = DarkObjectCache.createKey(productFile, "B2", null, "");
+        final String key3 = DarkObjectCache.createKey(productFile, "B3", null, "");
+
+        cache.put(key1, 1.0, Double.NaN);
+        cache.put(key2, 2.0, Double.NaN);
+        final File[] entryFiles = cacheDirectory.listFiles((dir, name) -> name.endsWith(".properties"));
+        assertNotNull(entryFiles);
+        for (File entryFile : entryFiles) {
+            Files.setLastModifiedTime(entryFile.toPath(), FileTime.fromMillis(1000L));
+        }
+        // key1 becomes the most recently used entry
+        assertNotNull(cache.get(key1));
+
+        cache.put(key3, 3.0, Double.NaN);
+        assertNotNull(cache.get(key1));
+        assertNull(cache.get(key2));
+        assertNotNull(cache.get(key3));
+    }
+
+    @Test
+    public void testAbandonedTempFilesAreDeleted() throws IOException {
+        final File abandonedFile = new File(cacheDirectory, "entry1.tmp");
+        Files.write(abandonedFile.toPath(), new byte[]{1});
+        Files.setLastModifiedTime(abandonedFile.toPath(), FileTime.fromMillis(1000L));
+        // may still be written by another process
+        final File recentFile = new File(cacheDirectory, "entry2.tmp");
+        Files.write(recentFile.toPath(), new byte[]{1});
+
+        final DarkObjectCache cache = new DarkObjectCache(cacheDirectory, 10);
+        cache.put(DarkObjectCache.createKey(productFile, "B2", null, ""), 0.5, Double.NaN);
+        assertFalse(abandonedFile.exists());
+        assertTrue(recentFile.exists());
+    }
+}
@@ -0,0 +1,58 @@
+package org.esa.snap.dos;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class DarkObjectGridTest {
+
+    @Test
+    public void testInterpolation() {
+        // 2 x 2 windows of 10 pixels, window centres at 5 and 15
+        final DarkObjectGrid grid = new DarkObjectGrid(2, 2, 10, new double[]{1.0, 2.0, 3.0, 4.0}, 0.0);
+
+        assertEquals(1.0, grid.getValue(0, 0), 1.E-10);
+        assertEquals(1.0, grid.getValue(4, 4), 1.E-10);
+        assertEquals(4.0, grid.getValue(19, 19), 1.E-10);
+        // half-way between the centres, pixel 9 has its centre at 9.5
+        assertEquals(1.45, grid.getValue(9, 0), 1.E-10);
+        assertEquals(1.9, grid.getValue(0, 9), 1.E-10);
+        assertEquals(2.35, grid.getValue(9, 9), 1.E-10);
+    }
+
+    @Test
+    public void testRow() {
+        final DarkObjectGrid grid = new DarkObjectGrid(3, 2, 8, new double[]{1.0, 5.0, 2.0, 3.0, 0.0, 7.0}, 0.0);
+        final double[] row = new double[17];
+        final double[] columnValues = new double[grid.getNumWindowsX()];
+        for (int y = 0; y < 16; y += 3) {
+            grid.getRow(y, 5, row, columnValues);
+            for (int i = 0; i < row.length; i++) {
+                assertEquals(grid.getValue(5 + i, y), row[i], 1.E-10);
+            }
+        }
+    }
+
+    @Test
+    public void testHolesFilledFromNeighbours() {
+        final double nan = Double.NaN;
+        final DarkObjectGrid grid = new DarkObjectGrid(3, 1, 10, new double[]{2.0, nan, nan}, 0.0);
+        assertArrayEquals(new double[]{2.0, 2.0, 2.0}, grid.getValues(), 1.E-10);
+
+        final DarkObjectGrid grid2 = new DarkObjectGrid(3, 1, 10, new double[]{2.0, nan, 4.0}, 0.0);
+        assertArrayEquals(new double[]{2.0, 3.0, 4.0}, grid2.getValues(), 1.E-10);
+    }
+
+    @Test
+    public void testFallbackIfNoWindowValid() {
+        final DarkObjectGrid grid = new DarkObjectGrid(2, 1, 10, new double[]{Double.NaN, Double.NaN}, 0.5);
+        assertEquals(0.5, grid.getValue(3, 3), 1.E-10);
+        assertEquals(0.5, grid.getValue(17, 3), 1.E-10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongNumberOfValues() {
+        new DarkObjectGrid(2, 2, 10, new double[3], 0.0);
+    }
+}
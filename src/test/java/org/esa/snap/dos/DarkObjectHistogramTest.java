@@ -0,0 +1,71 @@
+package org.esa.snap.dos;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class DarkObjectHistogramTest {
+
+    @Test
+    public void testGetValueAtPercentile() {
+        final double[] values = new double[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 1.3 + 0.01 * i;
+        }
+        final DarkObjectHistogram histogram = new DarkObjectHistogram();
+        histogram.accumulate(values, values.length);
+
+        assertEquals(10000, histogram.getCount());
+        assertEquals(1.3, histogram.getValueAtPercentile(0), 1.E-6);
+        assertEquals(2.3, histogram.getValueAtPercentile(1), histogram.getBinWidth());
+        assertEquals(6.3, histogram.getValueAtPercentile(5), histogram.getBinWidth());
+        assertEquals(histogram.getMaximum(), histogram.getValueAtPercentile(100), histogram.getBinWidth());
+    }
+
+    @Test
+    public void testNaNValuesAreIgnored() {
+        final DarkObjectHistogram histogram = new DarkObjectHistogram();
+        histogram.accumulate(new double[]{Double.NaN, 2.0, Double.NaN, 3.0}, 4);
+
+        assertEquals(2, histogram.getCount());
+        assertEquals(2.0, histogram.getValueAtPercentile(0), 1.E-6);
+    }
+
+    @Test
+    public void testEmptyHistogram() {
+        final DarkObjectHistogram histogram = new DarkObjectHistogram();
+        histogram.accumulate(new double[]{Double.NaN}, 1);
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0.0, histogram.getValueAtPercentile(5), 0.0);
+    }
+
+    @Test
+    public void testMergeIsIndependentOfOrder() {
+        final Random random = new Random(42);
+        final double[] values = new double[5000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 10.0 + 3.0 * random.nextGaussian();
+        }
+
+        final DarkObjectHistogram serial = new DarkObjectHistogram();
+        serial.accumulate(values, values.length);
+
+        final DarkObjectHistogram part1 = new DarkObjectHistogram();
+        part1.accumulate(Arrays.copyOfRange(values, 0, 10), 10);
+        final DarkObjectHistogram part2 = new DarkObjectHistogram();
+        part2.accumulate(Arrays.copyOfRange(values, 10, values.length), values.length - 10);
+        final DarkObjectHistogram merged = new DarkObjectHistogram();
+        merged.merge(part2);
+        merged.merge(part1);
+
+        assertEquals(serial.getCount(), merged.getCount());
+        assertEquals(serial.getBinWidth(), merged.getBinWidth(), 0.0);
+        for (double percentile : new double[]{0, 0.1, 1, 5, 50, 100}) {
+            assertEquals(serial.getValueAtPercentile(percentile), merged.getValueAtPercentile(percentile), 0.0);
+        }
+    }
+}
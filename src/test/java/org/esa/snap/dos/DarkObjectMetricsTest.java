@@ -0,0 +1,66 @@
+package org.esa.snap.dos;
+
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DarkObjectMetricsTest {
+
+    @Test
+    public void testRecord() {
+        final DarkObjectMetrics metrics = new DarkObjectMetrics();
+        final DarkObjectMetrics.Start start = DarkObjectMetrics.start();
+        metrics.record(DarkObjectMetrics.Phase.STATISTICS, "B2", start, 1000, 1);
+        metrics.record(DarkObjectMetrics.Phase.STATISTICS, "B2", start, 500, 2);
+        metrics.record(DarkObjectMetrics.Phase.STATISTICS, "B3", start, 1500, 3);
+
+        // the totals are derived from the records of the bands
+        final Map<String, Long> pixels = metrics.getPixels();
+        assertEquals(3, pixels.size());
+        assertEquals(1500L, (long) pixels.get("STATISTICS:B2"));
+        assertEquals(3000L, (long) pixels.get("STATISTICS"));
+        assertEquals(3L, (long) metrics.getTiles().get("STATISTICS:B2"));
+        assertEquals(6L, (long) metrics.getTiles().get("STATISTICS"));
+        assertTrue(metrics.getTimeMillis().get("STATISTICS:B2") >= 0.0);
+
+        metrics.reset();
+        assertTrue(metrics.getPixels().isEmpty());
+    }
+
+    @Test
+    public void testRecordSection() throws Exception {
+        final DarkObjectMetrics metrics = new DarkObjectMetrics();
+        final DarkObjectMetrics.Start start = DarkObjectMetrics.start();
+        Thread.sleep(20);
+        // e.g. two workers, each busy for the whole phase
+        metrics.record(DarkObjectMetrics.Phase.STATISTICS, "B2", start, 1000, 1);
+        metrics.record(DarkObjectMetrics.Phase.STATISTICS, "B2", start, 1000, 1);
+        metrics.recordSection(DarkObjectMetrics.Phase.STATISTICS, start, 0, 0);
+
+        // the total is the wall-clock time, not the sum over the workers
+        final double bandMillis = metrics.getTimeMillis().get("STATISTICS:B2");
+        final double totalMillis = metrics.getTimeMillis().get("STATISTICS");
+        assertTrue(totalMillis >= 20.0);
+        assertTrue(totalMillis < bandMillis);
+        assertEquals(2000L, (long) metrics.getPixels().get("STATISTICS"));
+        assertEquals(2000.0 / (totalMillis / 1000.0), metrics.getPixelsPerSecond().get("STATISTICS"), 1.0);
+    }
+
+    @Test
+    public void testGlobalMetrics() throws Exception {
+        final DarkObjectMetrics global = DarkObjectMetrics.getGlobal();
+        global.reset();
+        new DarkObjectMetrics().record(DarkObjectMetrics.Phase.SUBTRACTION, "B3", DarkObjectMetrics.start(), 42, 1);
+
+        assertEquals(42L, (long) global.getPixels().get("SUBTRACTION:B3"));
+        final ObjectName objectName = new ObjectName(DarkObjectMetrics.OBJECT_NAME);
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName));
+        assertFalse(ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "Pixels").toString().isEmpty());
+    }
+}
@@ -0,0 +1,87 @@
+package org.esa.snap.dos;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.snap.core.dataio.ProductIO;
+import org.esa.snap.core.datamodel.MetadataElement;
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.util.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DarkObjectSubtractionBatchOpTest {
+
+    private File testDirectory;
+
+    @Before
+    public void setUp() {
+        testDirectory = new File("dos_batch_test_out");
+        if (!testDirectory.mkdirs()) {
+            fail("Unable to create test directory");
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (testDirectory.isDirectory()) {
+            if (!FileUtils.deleteTree(testDirectory)) {
+                fail("Unable to delete test directory");
+            }
+        }
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        final File sourceDirectory = new File(testDirectory, "in");
+        final File targetDirectory = new File(testDirectory, "out");
+        for (String name : new String[]{"scene1", "scene2"}) {
+            final Product product = DarkObjectSubtractionIntegrationTest.createSourceProduct();
+            ProductIO.writeProduct(product, new File(sourceDirectory, name + ".dim"), "BEAM-DIMAP", false);
+        }
+
+        final DarkObjectSubtractionBatchOp operator = new DarkObjectSubtractionBatchOp();
+        operator.setParameter("sourceProductPaths", new String[]{sourceDirectory.getPath() + "/*.dim"});
+        operator.setParameter("targetDirectory", targetDirectory);
+        operator.setParameter("sourceBandNames", new String[]{"B2"});
+        operator.setParameter("histogramMinimumPercentile", 0.0);
+        operator.setParameter("parallelism", 2);
+        final Product targetProduct = operator.getTargetProduct();
+        operator.execute(ProgressMonitor.NULL);
+
+        assertTrue(new File(targetDirectory, "scene1.dim").isFile());
+        assertTrue(new File(targetDirectory, "scene2.dim").isFile());
+
+        final List<String> lines = Files.readAllLines(
+                new File(targetDirectory, DarkObjectSubtractionBatchOp.DEFAULT_SUMMARY_FILE_NAME).toPath(),
+                StandardCharsets.UTF_8);
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(1).startsWith("scene1.dim\tB2\t"));
+        assertTrue(lines.get(2).startsWith("scene2.dim\tB2\t"));
+        assertEquals(0.02, Double.parseDouble(lines.get(1).split("\t")[2]), 1.E-6);
+
+        final MetadataElement summaryElement = targetProduct.getMetadataRoot().getElement("Dark Object Spectral Values");
+        assertNotNull(summaryElement.getElement("scene2.dim"));
+        assertEquals(0.02, summaryElement.getElement("scene2.dim").getAttributeDouble("B2"), 1.E-6);
+    }
+
+    @Test
+    public void testAllOperatorParametersAreForwarded() {
+        // parameters of the single product operator missing here would silently keep their defaults in a batch
+        final Set<String> batchParameterNames =
+                DarkObjectSubtractionBatchOp.getParameterNames(new DarkObjectSubtractionBatchOp.Spi());
+        for (String name : DarkObjectSubtractionBatchOp.getParameterNames(new DarkObjectSubtractionOp.Spi())) {
+            assertTrue("Parameter not declared by the batch operator: " + name, batchParameterNames.contains(name));
+        }
+    }
+}
@@ -1,12 +1,33 @@
 package org.esa.snap.dos;
 
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.snap.core.dataio.ProductIO;
+import org.esa.snap.core.datamodel.Band;
+import org.esa.snap.core.datamodel.CrsGeoCoding;
+import org.esa.snap.core.datamodel.MetadataElement;
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.datamodel.ProductData;
+import org.esa.snap.core.datamodel.VirtualBand;
 import org.esa.snap.core.gpf.GPF;
+import org.esa.snap.core.gpf.OperatorException;
 import org.esa.snap.core.util.io.FileUtils;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Test;
 
+import java.awt.image.Raster;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class DarkObjectSubtractionIntegrationTest {
@@ -32,4 +53,395 @@ public class DarkObjectSubtractionIntegrationTest {
         }
     }
 
+    @Test
+    public void testDarkObjectSubtraction() throws Exception {
+        final Product sourceProduct = createSourceProduct();
+
+        final Map<String, Object> parameters = new HashMap<>();
+        parameters.put("sourceBandNames", new String[]{"B2"});
+        parameters.put("histogramMinimumPercentile", 0.0);
+        final Product targetProduct = GPF.createProduct("Snap.DarkObjectSubtraction", parameters, sourceProduct);
+
+        final Band targetBand = targetProduct.getBand("B2");
+        assertNotNull(targetBand);
+        assertEquals(ProductData.TYPE_FLOAT32, targetBand.getDataType());
+
+        final Raster targetData = targetBand.getSourceImage().getData();
+        assertEquals(0.0, targetData.getSampleFloat(1, 0, 0), 1.E-6);
+        assertEquals(0.01, targetData.getSampleFloat(2, 0, 0), 1.E-6);
+        assertEquals(0.11, targetData.getSampleFloat(2, 2, 0), 1.E-6);
+        // invalid source pixel is set to the no-data value
+        assertTrue(targetBand.isNoDataValueUsed());
+        assertTrue(Double.isNaN(targetBand.getNoDataValue()));
+        assertTrue(Float.isNaN(targetData.getSampleFloat(0, 0, 0)));
+
+        final MetadataElement dosElement = targetProduct.getMetadataRoot().getElement("Dark Object Spectral Values");
+        assertNotNull(dosElement);
+        assertTrue(dosElement.containsAttribute("B2"));
+        assertEquals(0.02, dosElement.getAttributeDouble("B2"), 1.E-6);
+    }
+
+    @Test
+    public void testDarkObjectSubtraction_metadataIsWritten() throws Exception {
+        // the dark object values are computed lazily, but must still reach the header of a written product
+        final Product sourceProduct = createSourceProduct();
+
+        final Map<String, Object> parameters = new HashMap<>();
+        parameters.put("sourceBandNames", new String[]{"B2"});
+        parameters.put("histogramMinimumPercentile", 0.0);
+        final Product targetProduct = GPF.createProduct("Snap.DarkObjectSubtraction", parameters, sourceProduct);
+        final File targetFile = new File(targetDirectory, "dos.dim");
+        GPF.writeProduct(targetProduct, targetFile, "BEAM-DIMAP", false, ProgressMonitor.NULL);
+
+        final Product writtenProduct = ProductIO.readProduct(targetFile);
+        try {
+            final MetadataElement dosElement =
+                    writtenProduct.getMetadataRoot().getElement("Dark Object Spectral Values");
+            assertNotNull(dosElement);
+            assertEquals(0.02, dosElement.getAttributeDouble("B2"), 1.E-6);
+            final Raster targetData = writtenProduct.getBand("B2").getSourceImage().getData();
+            assertEquals(0.11, targetData.getSampleFloat(2, 2, 0), 1.E-6);
+        } finally {
+            writtenProduct.dispose();
+        }
+    }
+
+    @Test
+    public void testDarkObjectSubtraction_cacheOnlyForProductsReadFromFile() throws Exception {
+        final File sourceFile = new File(targetDirectory, "source.dim");
+        ProductIO.writeProduct(createSourceProduct(), sourceFile, "BEAM-DIMAP", false);
+        final File cacheDirectory = new File(targetDirectory, "cache");
+
+        final Map<String, Object> parameters = new HashMap<>();
+        parameters.put("sourceBandNames", new String[]{"B2"});
+        parameters.put("histogramMinimumPercentile", 0.0);
+        parameters.put("cacheDirectory", cacheDirectory);
+
+        // a product which only carries the file location, e.g. a derived one, has other pixels than the file
+        final Product derivedProduct = createSourceProduct();
+        derivedProduct.setFileLocation(sourceFile);
+        final Product derivedTarget = GPF.createProduct("Snap.DarkObjectSubtraction", parameters, derivedProduct);
+        derivedTarget.getBand("B2").getSourceImage().getData();
+        assertEquals(0, getCacheEntryCount(cacheDirectory));
+
+        final Product readProduct = ProductIO.readProduct(sourceFile);
+        try {
+            final Product readTarget = GPF.createProduct("Snap.DarkObjectSubtraction", parameters, readProduct);
+            readTarget.getBand("B2").getSourceImage().getData();
+            assertEquals(1, getCacheEntryCount(cacheDirectory));
+        } finally {
+            readProduct.dispose();
+        }
+    }
+
+    @Test
+    public void testDarkObjectSubtraction_clampedValuesStayValid() throws Exception {
+        // the source no-data value is 0, as for Sentinel-2
+        final Product sourceProduct = createSourceProduct();
+
+        final Map<String, Object> parameters = new HashMap<>();
+        parameters.put("sourceBandNames", new String[]{"B2"});
+        parameters.put("histogramMinimumPercentile", 50.0);
+        parameters.put("clampNegativeValues", true);
+        final Product targetProduct = GPF.createProduct("Snap.DarkObjectSubtraction", parameters, sourceProduct);
+
+        final Band targetBand = targetProduct.getBand("B2");
+        assertEquals(ProductData.TYPE_FLOAT32, targetBand.getDataType());
+        final Raster targetData = targetBand.getSourceImage().getData();
+        final Raster validData = targetBand.getValidMaskImage().getData();
+        // clamped to zero, but still valid
+        assertEquals(0.0, targetData.getSampleFloat(1, 0, 0), 0.0);
+        assertTrue(validData.getSample(1, 0, 0) != 0);
+        assertEquals(0.06, targetData.getSampleFloat(2, 2, 0), 1.E-6);
+        // the invalid source pixel stays invalid
+        assertTrue(Float.isNaN(targetData.getSampleFloat(0, 0, 0)));
+        assertEquals(0, validData.getSample(0, 0, 0));
+    }
+
+    @Test
+    public void testDarkObjectSubtraction_viaScalingOffset() throws Exception {
+        final Product sourceProduct = createSourceProduct();
+
+        final Map<String, Object> parameters = new HashMap<>();
+        parameters.put("sourceBandNames", new String[]{"B2"});
+        parameters.put("histogramMinimumPercentile", 0.0);
+        parameters.put("subtractViaScalingOffset", true);
+        final Product targetProduct = GPF.createProduct("Snap.DarkObjectSubtraction", parameters, sourceProduct);
+
+        final Band targetBand = targetProduct.getBand("B2");
+        assertNotNull(targetBand);
+        assertEquals(ProductData.TYPE_UINT16, targetBand.getDataType());
+        assertEquals(1.E-4, targetBand.getScalingFactor(), 1.E-10);
+        assertEquals(-0.02, targetBand.getScalingOffset(), 1.E-10);
+        assertTrue(targetBand.isNoDataValueUsed());
+
+        // raw data are unchanged
+        final Raster rawData = targetBand.getSourceImage().getData();
+        assertEquals(200, rawData.getSample(1, 0, 0));
+        assertEquals(1300, rawData.getSample(2, 2, 0));
+
+        final Raster geophysicalData = targetBand.getGeophysicalImage().getData();
+        assertEquals(0.0, geophysicalData.getSampleDouble(1, 0, 0), 1.E-6);
+        assertEquals(0.11, geophysicalData.getSampleDouble(2, 2, 0), 1.E-6);
+    }
+
+    @Test
+    public void testDarkObjectSubtraction_metricsInMetadata() throws Exception {
+        final Product sourceProduct = createSourceProduct();
+
+        final Map<String, Object> parameters = new HashMap<>();
+        parameters.put("sourceBandNames", new String[]{"B2"});
+        parameters.put("histogramMinimumPercentile", 0.0);
+        parameters.put("writeMetricsToMetadata", true);
+        final Product targetProduct = GPF.createProduct("Snap.DarkObjectSubtraction", parameters, sourceProduct);
+        targetProduct.getBand("B2").getSourceImage().getData();
+
+        final MetadataElement metricsElement =
+                targetProduct.getMetadataRoot().getElement("Dark Object Performance Metrics");
+        assertNotNull(metricsElement);
+        final MetadataElement bandElement = metricsElement.getElement("STATISTICS:B2");
+        assertNotNull(bandElement);
+        assertEquals(12, bandElement.getAttributeInt("pixels"));
+        assertEquals(1, bandElement.getAttributeInt("tiles"));
+        assertTrue(bandElement.getAttributeDouble("time_ms") >= 0.0);
+        // the totals are derived from the bands, not counted twice
+        assertEquals(12, metricsElement.getElement("STATISTICS").getAttributeInt("pixels"));
+        // the subtraction is not complete when the metadata is written
+        assertNull(metricsElement.getElement("SUBTRACTION"));
+        assertNull(metricsElement.getElement("SUBTRACTION:B2"));
+    }
+
+    @Test
+    public void testDarkObjectSubtraction_sweep() throws Exception {
+        final Product sourceProduct = createSourceProduct();
+
+        final Map<String, Object> parameters = new HashMap<>();
+        parameters.put("sourceBandNames", new String[]{"B2"});
+        parameters.put("histogramMinimumPercentile", 0.0);
+        parameters.put("sweepPercentiles", new double[]{0.0, 50.0});
+        parameters.put("sweepMaskExpressions", new String[]{"B2 > 0.055"});
+        final Product targetProduct = GPF.createProduct("Snap.DarkObjectSubtraction", parameters, sourceProduct);
+        targetProduct.getBand("B2").getSourceImage().getData();
+
+        final MetadataElement sweepElement = targetProduct.getMetadataRoot().getElement("Dark Object Sweep");
+        assertNotNull(sweepElement);
+        assertEquals(2, sweepElement.getNumElements());
+        final MetadataElement noMaskElement = sweepElement.getElementAt(0);
+        assertEquals("", noMaskElement.getAttributeString("mask_expression"));
+        assertEquals(0.02, noMaskElement.getElementAt(0).getAttributeDouble("B2"), 1.E-6);
+        assertEquals(0.07, noMaskElement.getElementAt(1).getAttributeDouble("B2"), 1.E-6);
+        final MetadataElement maskElement = sweepElement.getElementAt(1);
+        assertEquals("B2 > 0.055", maskElement.getAttributeString("mask_expression"));
+        assertEquals(0.06, maskElement.getElementAt(0).getAttributeDouble("B2"), 1.E-6);
+        assertEquals(50.0, maskElement.getElementAt(1).getAttributeDouble("percentile"), 1.E-6);
+
+        // the subtraction uses the main percentile and mask
+        final MetadataElement dosElement = targetProduct.getMetadataRoot().getElement("Dark Object Spectral Values");
+        assertEquals(0.02, dosElement.getAttributeDouble("B2"), 1.E-6);
+    }
+
+    @Test(expected = OperatorException.class)
+    public void testDarkObjectSubtraction_sweepPercentileOutOfRange() throws Exception {
+        final Map<String, Object> parameters = new HashMap<>();
+        parameters.put("sourceBandNames", new String[]{"B2"});
+        parameters.put("sweepPercentiles", new double[]{1.0, 101.0});
+        GPF.createProduct("Snap.DarkObjectSubtraction", parameters, createSourceProduct());
+    }
+
+    @Test
+    public void testDarkObjectSubtraction_multiSize() throws Exception {
+        final Product sourceProduct = createSourceProduct();
+        // a band at half resolution, e.g. a 20 m band in a 10 m product
+        final Band coarseBand = new Band("B5", ProductData.TYPE_FLOAT32, 2, 2);
+        coarseBand.setSpectralWavelength(705.0f);
+        coarseBand.setDataElems(new float[]{0.3f, 0.1f, 0.2f, 0.4f});
+        sourceProduct.addBand(coarseBand);
+        assertTrue(sourceProduct.isMultiSize());
+
+        final Map<String, Object> parameters = new HashMap<>();
+        parameters.put("sourceBandNames", new String[]{"B2", "B5"});
+        parameters.put("histogramMinimumPercentile", 0.0);
+        final Product targetProduct = GPF.createProduct("Snap.DarkObjectSubtraction", parameters, sourceProduct);
+
+        final Band targetBand = targetProduct.getBand("B5");
+        assertNotNull(targetBand);
+        assertEquals(2, targetBand.getRasterWidth());
+        assertEquals(2, targetBand.getRasterHeight());
+        assertEquals(4, targetProduct.getBand("B2").getRasterWidth());
+
+        final Raster targetData = targetBand.getSourceImage().getData();
+        assertEquals(0.2, targetData.getSampleFloat(0, 0, 0), 1.E-6);
+        assertEquals(0.0, targetData.getSampleFloat(1, 0, 0), 1.E-6);
+
+        final MetadataElement dosElement = targetProduct.getMetadataRoot().getElement("Dark Object Spectral Values");
+        assertEquals(0.02, dosElement.getAttributeDouble("B2"), 1.E-6);
+        assertEquals(0.1, dosElement.getAttributeDouble("B5"), 1.E-6);
+    }
+
+    @Test
+    public void testDarkObjectSubtraction_sensor() throws Exception {
+        final Product sourceProduct = createSourceProduct();
+        final Band coarseBand = new Band("B5", ProductData.TYPE_FLOAT32, 2, 2);
+        coarseBand.setSpectralWavelength(705.0f);
+        coarseBand.setDataElems(new float[]{0.3f, 0.1f, 0.2f, 0.4f});
+        sourceProduct.addBand(coarseBand);
+
+        // the bands are selected from the sensor profile and processed in a 10 m and a 20 m group
+        final Map<String, Object> parameters = new HashMap<>();
+        parameters.put("sensor", Sensor.S2_MSI);
+        parameters.put("histogramMinimumPercentile", 0.0);
+        final Product targetProduct = GPF.createProduct("Snap.DarkObjectSubtraction", parameters, sourceProduct);
+
+        assertNotNull(targetProduct.getBand("B2"));
+        assertNotNull(targetProduct.getBand("B5"));
+        targetProduct.getBand("B5").getSourceImage().getData();
+        final MetadataElement dosElement = targetProduct.getMetadataRoot().getElement("Dark Object Spectral Values");
+        assertEquals(0.02, dosElement.getAttributeDouble("B2"), 1.E-6);
+        assertEquals(0.1, dosElement.getAttributeDouble("B5"), 1.E-6);
+    }
+
+    @Test
+    public void testDarkObjectSubtraction_uint16Output() throws Exception {
+        final Product sourceProduct = createSourceProduct();
+
+        final Map<String, Object> parameters = new HashMap<>();
+        parameters.put("sourceBandNames", new String[]{"B2"});
+        parameters.put("histogramMinimumPercentile", 50.0);
+        parameters.put("outputDataType", "uint16");
+        parameters.put("clampNegativeValues", true);
+        final Product targetProduct = GPF.createProduct("Snap.DarkObjectSubtraction", parameters, sourceProduct);
+
+        final Band targetBand = targetProduct.getBand("B2");
+        assertEquals(ProductData.TYPE_UINT16, targetBand.getDataType());
+        assertEquals(1.E-4, targetBand.getScalingFactor(), 1.E-10);
+        assertTrue(targetBand.isNoDataValueUsed());
+        assertEquals(65535.0, targetBand.getNoDataValue(), 1.E-10);
+
+        final MetadataElement dosElement = targetProduct.getMetadataRoot().getElement("Dark Object Spectral Values");
+        final double darkObjectValue = dosElement.getAttributeDouble("B2");
+        assertTrue(darkObjectValue > 0.03);
+
+        final Raster targetData = targetBand.getSourceImage().getData();
+        final Raster validData = targetBand.getValidMaskImage().getData();
+        // no-data is kept, negative values are clamped to a valid zero
+        assertEquals(65535, targetData.getSample(0, 0, 0));
+        assertEquals(0, validData.getSample(0, 0, 0));
+        assertEquals(0, targetData.getSample(1, 0, 0));
+        assertTrue(validData.getSample(1, 0, 0) != 0);
+        assertEquals(Math.round((0.14 - darkObjectValue) * 1.E4), targetData.getSample(3, 2, 0));
+    }
+
+    @Test(expected = OperatorException.class)
+    public void testDarkObjectSubtraction_uint16OutputRequiresClamping() throws Exception {
+        final Product sourceProduct = createSourceProduct();
+
+        final Map<String, Object> parameters = new HashMap<>();
+        parameters.put("sourceBandNames", new String[]{"B2"});
+        parameters.put("outputDataType", "uint16");
+        parameters.put("clampNegativeValues", false);
+        GPF.createProduct("Snap.DarkObjectSubtraction", parameters, sourceProduct);
+    }
+
+    @Test
+    public void testDarkObjectSubtraction_windowed() throws Exception {
+        final Product sourceProduct = new Product("p1", "t", 4, 2);
+        sourceProduct.setSceneGeoCoding(new CrsGeoCoding(DefaultGeographicCRS.WGS84, 4, 2, 10.0, 50.0, 0.1, 0.1));
+        sourceProduct.setPreferredTileSize(2, 2);
+        final Band band = sourceProduct.addBand("B2", ProductData.TYPE_FLOAT32);
+        band.setSpectralWavelength(490.0f);
+        // haze increasing to the right: the left window has a dark object of 0.1, the right one of 0.5
+        band.setDataElems(new float[]{
+                0.1f, 0.2f, 0.5f, 0.6f,
+                0.3f, 0.4f, 0.7f, 0.8f
+        });
+
+        final Map<String, Object> parameters = new HashMap<>();
+        parameters.put("sourceBandNames", new String[]{"B2"});
+        parameters.put("histogramMinimumPercentile", 0.0);
+        parameters.put("windowSize", 2);
+        final Product targetProduct = GPF.createProduct("Snap.DarkObjectSubtraction", parameters, sourceProduct);
+
+        // interpolated between the window centres at x = 1 and x = 3, constant outside
+        final Raster targetData = targetProduct.getBand("B2").getSourceImage().getData();
+        assertEquals(0.0, targetData.getSampleFloat(0, 0, 0), 1.E-6);
+        assertEquals(0.0, targetData.getSampleFloat(1, 0, 0), 1.E-6);
+        assertEquals(0.1, targetData.getSampleFloat(2, 0, 0), 1.E-6);
+        assertEquals(0.1, targetData.getSampleFloat(3, 0, 0), 1.E-6);
+
+        final MetadataElement gridElement = targetProduct.getMetadataRoot().getElement("Dark Object Grid");
+        assertNotNull(gridElement);
+        final MetadataElement bandElement = gridElement.getElement("B2");
+        assertEquals(2, bandElement.getAttributeInt("num_windows_x"));
+        assertEquals(1, bandElement.getAttributeInt("num_windows_y"));
+        final ProductData windowValues = bandElement.getAttribute("window_values").getData();
+        assertEquals(0.1, windowValues.getElemDoubleAt(0), 1.E-6);
+        assertEquals(0.5, windowValues.getElemDoubleAt(1), 1.E-6);
+
+        // the global value is still taken from the whole image
+        final MetadataElement dosElement = targetProduct.getMetadataRoot().getElement("Dark Object Spectral Values");
+        assertEquals(0.1, dosElement.getAttributeDouble("B2"), 1.E-6);
+    }
+
+    @Test
+    public void testDarkObjectSubtraction_progressive() throws Exception {
+        final Product sourceProduct = new Product("p1", "t", 512, 512);
+        sourceProduct.setSceneGeoCoding(new CrsGeoCoding(DefaultGeographicCRS.WGS84, 512, 512, 10.0, 50.0, 0.01, 0.01));
+        sourceProduct.setPreferredTileSize(64, 64);
+        final Band band = new VirtualBand("B2", ProductData.TYPE_FLOAT32, 512, 512, "(X-0.5) + (Y-0.5) + 1.3");
+        band.setSpectralWavelength(490.0f);
+        sourceProduct.addBand(band);
+        final int levelCount = band.getSourceImage().getModel().getLevelCount();
+        assertTrue(levelCount > 1);
+
+        final DarkObjectSubtractionOp operator = new DarkObjectSubtractionOp();
+        operator.setSourceProduct(sourceProduct);
+        operator.setParameter("sourceBandNames", new String[]{"B2"});
+        operator.setParameter("histogramMinimumPercentile", 0.0);
+        operator.setParameter("progressiveEstimation", true);
+        final Product targetProduct = operator.getTargetProduct();
+        final List<Integer> levels = new ArrayList<>();
+        final List<double[]> estimates = new ArrayList<>();
+        operator.addEstimateListener((level, bandNames, values) -> {
+            assertArrayEquals(new String[]{"B2"}, bandNames);
+            levels.add(level);
+            estimates.add(values);
+        });
+        operator.execute(ProgressMonitor.NULL);
+
+        // one estimate per coarser level, starting with the coarsest one
+        assertEquals(levelCount - 1, estimates.size());
+        for (int i = 0; i < levels.size(); i++) {
+            assertEquals(levelCount - 1 - i, levels.get(i).intValue());
+        }
+        for (double[] values : estimates) {
+            assertTrue(values[0] >= 1.3 - 1.E-6);
+            assertTrue(values[0] < 10.0);
+        }
+
+        final MetadataElement dosElement = targetProduct.getMetadataRoot().getElement("Dark Object Spectral Values");
+        assertEquals(1.3, dosElement.getAttributeDouble("B2"), 1.E-6);
+    }
+
+    private static int getCacheEntryCount(File cacheDirectory) {
+        final File[] entryFiles = cacheDirectory.listFiles((dir, name) -> name.endsWith(".properties"));
+        return entryFiles != null ? entryFiles.length : 0;
+    }
+
+    static Product createSourceProduct() throws Exception {
+        final int width = 4;
+        final int height = 3;
+        final Product product = new Product("p1", "t", width, height);
+        product.setSceneGeoCoding(new CrsGeoCoding(DefaultGeographicCRS.WGS84, width, height, 10.0, 50.0, 0.1, 0.1));
+        final Band band = product.addBand("B2", ProductData.TYPE_UINT16);
+        band.setSpectralWavelength(490.0f);
+        band.setScalingFactor(1.E-4);
+        band.setNoDataValue(0);
+        band.setNoDataValueUsed(true);
+        band.setDataElems(new short[]{
+                0, 200, 300, 400,
+                500, 600, 700, 800,
+                900, 1000, 1300, 1400
+        });
+        return product;
+    }
 }
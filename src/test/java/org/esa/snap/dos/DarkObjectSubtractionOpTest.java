@@ -6,11 +6,16 @@ import org.esa.snap.core.datamodel.*;
 import org.junit.Before;
 import org.junit.Test;
 
+import javax.media.jai.Histogram;
+import javax.media.jai.JAI;
 import javax.media.jai.RenderedOp;
+import javax.media.jai.TileCache;
 import java.awt.image.DataBuffer;
+import java.awt.image.RenderedImage;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 public class DarkObjectSubtractionOpTest {
 
@@ -189,4 +194,305 @@ public class DarkObjectSubtractionOpTest {
         assertEquals(DarkObjectSubtractionOp.getHistogramMaximum(stx), histoMin, 1.E-6);
     }
 
+    @Test
+    public void testComputeDarkObjectValues_singlePass() {
+        final Product product = new Product("F", "F", 100, 100);
+        final Band band1 = new VirtualBand("V1", ProductData.TYPE_FLOAT32, 100, 100, "(X-0.5) + (Y-0.5) + 1.3");
+        final Band band2 = new VirtualBand("V2", ProductData.TYPE_FLOAT32, 100, 100, "(X-0.5) + (Y-0.5) + 2.7");
+        product.addBand(band1);
+        product.addBand(band2);
+
+        final DarkObjectStatistics statistics = new DarkObjectStatistics(new Band[]{band1, band2}, (RenderedImage) null);
+        final double[] darkObjectValues = statistics.computeDarkObjectValues(ProgressMonitor.NULL, 0);
+
+        assertEquals(2, darkObjectValues.length);
+        assertEquals(1.3, darkObjectValues[0], 1.E-6);
+        assertEquals(2.7, darkObjectValues[1], 1.E-6);
+    }
+
+    @Test
+    public void testComputeDarkObjectValues_withRoiMask() {
+        final Product product = new Product("F", "F", 100, 100);
+        final Band band = new VirtualBand("V", ProductData.TYPE_FLOAT32, 100, 100, "(X-0.5) + (Y-0.5) + 1.3");
+        product.addBand(band);
+
+        Mask mask = new Mask("m", 100, 100, Mask.BandMathsType.INSTANCE);
+        Mask.BandMathsType.setExpression(mask, "X >= 10 && Y >= 10");
+        product.getMaskGroup().add(mask);
+
+        final DarkObjectStatistics statistics = new DarkObjectStatistics(new Band[]{band}, mask.getSourceImage());
+        final double[] darkObjectValues = statistics.computeDarkObjectValues(ProgressMonitor.NULL, 0);
+        assertEquals(21.3, darkObjectValues[0], 1.E-6);
+    }
+
+    @Test
+    public void testComputeDarkObjectValues_parallelEqualsSerial() {
+        final Product product = new Product("F", "F", 300, 200);
+        product.setPreferredTileSize(32, 32);
+        final Band band = new VirtualBand("V", ProductData.TYPE_FLOAT32, 300, 200,
+                                          "sin(X * 0.1) * cos(Y * 0.07) + 0.001 * X");
+        product.addBand(band);
+
+        final DarkObjectStatistics serialStatistics = new DarkObjectStatistics(new Band[]{band}, (RenderedImage) null);
+        final DarkObjectAccumulator serialHistogram = serialStatistics.computeAccumulators(ProgressMonitor.NULL)[0];
+
+        final DarkObjectStatistics parallelStatistics = new DarkObjectStatistics(new Band[]{band}, (RenderedImage) null);
+        parallelStatistics.setParallelism(4);
+        final DarkObjectAccumulator parallelHistogram = parallelStatistics.computeAccumulators(ProgressMonitor.NULL)[0];
+
+        assertEquals(serialHistogram.getCount(), parallelHistogram.getCount());
+        for (double percentile : new double[]{0, 1, 5}) {
+            assertEquals(serialHistogram.getValueAtPercentile(percentile),
+                         parallelHistogram.getValueAtPercentile(percentile), 0.0);
+        }
+    }
+
+    @Test
+    public void testComputeDarkObjectValues_equalsStx() {
+        final Product product = new Product("F", "F", 300, 200);
+        product.setPreferredTileSize(32, 32);
+        final Band band = new VirtualBand("V", ProductData.TYPE_FLOAT32, 300, 200,
+                                          "sin(X * 0.1) * cos(Y * 0.07) + 0.001 * X");
+        product.addBand(band);
+        final Stx stx = new StxFactory().create(band, ProgressMonitor.NULL);
+        final Histogram stxHistogram = stx.getHistogram();
+        final double stxBinWidth = (stxHistogram.getHighValue()[0] - stxHistogram.getLowValue()[0]) /
+                stxHistogram.getNumBins(0);
+
+        final DarkObjectStatistics statistics = new DarkObjectStatistics(new Band[]{band}, (RenderedImage) null);
+        statistics.setParallelism(4);
+        for (double percentile : new double[]{0, 0.1, 1, 5}) {
+            final double darkObjectValue = statistics.computeDarkObjectValues(ProgressMonitor.NULL, percentile)[0];
+            assertEquals(DarkObjectSubtractionOp.getHistogramMinAtPercentile(stx, percentile), darkObjectValue,
+                         stxBinWidth);
+        }
+    }
+
+    @Test
+    public void testComputeDarkObjectValues_integerBand() {
+        final Product product = new Product("F", "F", 100, 100);
+        final Band band = new Band("B", ProductData.TYPE_UINT16, 100, 100);
+        final short[] rawData = new short[100 * 100];
+        for (int y = 0; y < 100; y++) {
+            for (int x = 0; x < 100; x++) {
+                rawData[y * 100 + x] = (short) (x + y + 101);
+            }
+        }
+        band.setDataElems(rawData);
+        band.setScalingFactor(1.E-4);
+        band.setScalingOffset(-0.1);
+        product.addBand(band);
+        assertTrue(DarkObjectStatistics.isRawDomainApplicable(band));
+
+        final DarkObjectStatistics statistics = new DarkObjectStatistics(new Band[]{band}, (RenderedImage) null);
+        final DarkObjectAccumulator accumulator = statistics.computeAccumulators(ProgressMonitor.NULL)[0];
+        assertTrue(accumulator instanceof IntegerHistogram);
+        assertEquals(10000, accumulator.getCount());
+
+        // raw minimum is 101, converted to geophysical units once
+        assertEquals(101 * 1.E-4 - 0.1, statistics.getDarkObjectValue(0, accumulator, 0), 1.E-9);
+
+        // int8 rasters are stored as unsigned bytes, negative raw values must not be binned as 128..255
+        final Band int8Band = new Band("B8", ProductData.TYPE_INT8, 100, 100);
+        final byte[] int8Data = new byte[100 * 100];
+        for (int y = 0; y < 100; y++) {
+            for (int x = 0; x < 100; x++) {
+                int8Data[y * 100 + x] = (byte) (x + y - 100);
+            }
+        }
+        int8Band.setDataElems(int8Data);
+        int8Band.setScalingFactor(0.01);
+        product.addBand(int8Band);
+        assertTrue(DarkObjectStatistics.isRawDomainApplicable(int8Band));
+
+        final DarkObjectStatistics int8Statistics = new DarkObjectStatistics(new Band[]{int8Band}, (RenderedImage) null);
+        final DarkObjectAccumulator int8Accumulator = int8Statistics.computeAccumulators(ProgressMonitor.NULL)[0];
+        assertTrue(int8Accumulator instanceof IntegerHistogram);
+        assertEquals(10000, int8Accumulator.getCount());
+        assertEquals(-1.0, int8Statistics.getDarkObjectValue(0, int8Accumulator, 0), 1.E-9);
+        assertEquals(0.98, int8Statistics.getDarkObjectValue(0, int8Accumulator, 100), 1.E-9);
+    }
+
+    @Test
+    public void testComputeDarkObjectValues_sampled() {
+        final Product product = new Product("F", "F", 400, 400);
+        final Band band = new VirtualBand("V", ProductData.TYPE_FLOAT32, 400, 400, "(X-0.5) + (Y-0.5) + 1.3");
+        product.addBand(band);
+
+        final DarkObjectStatistics statistics = new DarkObjectStatistics(new Band[]{band}, (RenderedImage) null);
+        statistics.setSamplingStep(4);
+        assertTrue(statistics.isSampled());
+        final DarkObjectAccumulator accumulator = statistics.computeAccumulators(ProgressMonitor.NULL)[0];
+
+        assertEquals(100 * 100, accumulator.getCount());
+        assertEquals(1.3, statistics.getDarkObjectValue(0, accumulator, 0), 1.E-6);
+        final double samplingError = statistics.getSamplingError(0, accumulator, 5);
+        assertTrue(samplingError > 0.0);
+        assertTrue(samplingError < 10.0);
+
+        // only the sampled pixels inside the search area are used
+        Mask mask = new Mask("m", 400, 400, Mask.BandMathsType.INSTANCE);
+        Mask.BandMathsType.setExpression(mask, "X >= 10 && Y >= 10");
+        product.getMaskGroup().add(mask);
+        final DarkObjectStatistics maskedStatistics = new DarkObjectStatistics(new Band[]{band}, mask.getSourceImage());
+        maskedStatistics.setSamplingStep(4);
+        final DarkObjectAccumulator maskedAccumulator = maskedStatistics.computeAccumulators(ProgressMonitor.NULL)[0];
+        assertEquals(97 * 97, maskedAccumulator.getCount());
+        assertEquals(25.3, maskedStatistics.getDarkObjectValue(0, maskedAccumulator, 0), 1.E-6);
+    }
+
+    @Test
+    public void testComputeDarkObjectValues_windows() {
+        final Product product = new Product("F", "F", 100, 100);
+        product.setPreferredTileSize(32, 32);
+        final Band band = new Band("B", ProductData.TYPE_UINT16, 100, 100);
+        final short[] rawData = new short[100 * 100];
+        for (int y = 0; y < 100; y++) {
+            for (int x = 0; x < 100; x++) {
+                rawData[y * 100 + x] = (short) (x + y + 1);
+            }
+        }
+        band.setDataElems(rawData);
+        band.setScalingFactor(1.E-4);
+        product.addBand(band);
+
+        // windows of 30 pixels are not aligned with the tiles of 32 pixels
+        final DarkObjectStatistics statistics = new DarkObjectStatistics(new Band[]{band}, (RenderedImage) null);
+        statistics.setWindowSize(30);
+        assertEquals(4, statistics.getNumWindowsX());
+        assertEquals(4, statistics.getNumWindowsY());
+        final DarkObjectAccumulator[][] accumulators = statistics.computeAccumulatorGrid(ProgressMonitor.NULL)[0];
+        assertEquals(4 * 4 + 1, accumulators.length);
+        for (int windowY = 0; windowY < 4; windowY++) {
+            for (int windowX = 0; windowX < 4; windowX++) {
+                final DarkObjectAccumulator accumulator = accumulators[windowY * 4 + windowX][0];
+                assertEquals((windowX < 3 ? 30 : 10) * (windowY < 3 ? 30 : 10), accumulator.getCount());
+                assertEquals((30 * (windowX + windowY) + 1) * 1.E-4,
+                             statistics.getDarkObjectValue(0, accumulator, 0), 1.E-9);
+            }
+        }
+
+        // the whole image is still accumulated exactly
+        final DarkObjectAccumulator imageAccumulator = DarkObjectStatistics.getImageAccumulators(accumulators)[0];
+        assertTrue(imageAccumulator instanceof IntegerHistogram);
+        assertEquals(10000, imageAccumulator.getCount());
+        assertEquals(100 * 1.E-4, statistics.getDarkObjectValue(0, imageAccumulator, 50), 1.E-9);
+    }
+
+    @Test
+    public void testComputeDarkObjectValues_memoryBudget() {
+        final Product product = new Product("F", "F", 300, 200);
+        product.setPreferredTileSize(32, 32);
+        final Band band = new VirtualBand("V", ProductData.TYPE_FLOAT32, 300, 200,
+                                          "sin(X * 0.1) * cos(Y * 0.07) + 0.001 * X");
+        product.addBand(band);
+        // scaled to geophysical values, with a no-data value and a valid pixel expression referring to another band
+        final Band rawBand = new Band("R", ProductData.TYPE_INT32, 300, 200);
+        final int[] rawData = new int[300 * 200];
+        for (int y = 0; y < 200; y++) {
+            for (int x = 0; x < 300; x++) {
+                rawData[y * 300 + x] = (7 * x + 13 * y) % 1000;
+            }
+        }
+        rawBand.setDataElems(rawData);
+        rawBand.setScalingFactor(1.0 / 1024);
+        rawBand.setNoDataValue(0);
+        rawBand.setNoDataValueUsed(true);
+        rawBand.setValidPixelExpression("V > -0.5");
+        product.addBand(rawBand);
+        final Band[] bands = {band, rawBand};
+
+        final TileCache tileCache = JAI.getDefaultInstance().getTileCache();
+        tileCache.flush();
+        final DarkObjectStatistics statistics = new DarkObjectStatistics(bands, (RenderedImage) null);
+        final DarkObjectAccumulator[] accumulators = statistics.computeAccumulators(ProgressMonitor.NULL);
+        // the check below does see tiles read through the cache
+        assertTrue(getCachedTileCount(rawBand.getSourceImage()) > 0);
+
+        // a budget too small for more than one worker
+        tileCache.flush();
+        final DarkObjectStatistics boundedStatistics = new DarkObjectStatistics(bands, (RenderedImage) null);
+        boundedStatistics.setParallelism(4);
+        boundedStatistics.setMemoryBudget(1);
+        final DarkObjectAccumulator[] boundedAccumulators = boundedStatistics.computeAccumulators(ProgressMonitor.NULL);
+
+        // neither the tiles of the bands nor the raw tiles below their valid mask and geophysical images are cached
+        assertEquals(0, getCachedTileCount(band.getSourceImage()));
+        assertEquals(0, getCachedTileCount(rawBand.getSourceImage()));
+        for (int i = 0; i < bands.length; i++) {
+            assertTrue(accumulators[i].getCount() > 0);
+            assertEquals(accumulators[i].getCount(), boundedAccumulators[i].getCount());
+            for (double percentile : new double[]{0, 1, 5}) {
+                assertEquals(statistics.getDarkObjectValue(i, accumulators[i], percentile),
+                             boundedStatistics.getDarkObjectValue(i, boundedAccumulators[i], percentile), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testComputeDarkObjectValues_memoryBudgetWithRoiExpression() {
+        final Product product = new Product("F", "F", 300, 200);
+        product.setPreferredTileSize(32, 32);
+        final Band band = new Band("B", ProductData.TYPE_INT16, 300, 200);
+        final short[] data = new short[300 * 200];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (short) ((31 * i) % 500);
+        }
+        band.setDataElems(data);
+        product.addBand(band);
+        // the search area refers to another band, which is only read for the mask
+        final Band roiBand = new Band("R", ProductData.TYPE_INT32, 300, 200);
+        final int[] roiData = new int[300 * 200];
+        for (int y = 0; y < 200; y++) {
+            for (int x = 0; x < 300; x++) {
+                roiData[y * 300 + x] = (7 * x + 13 * y) % 1000;
+            }
+        }
+        roiBand.setDataElems(roiData);
+        product.addBand(roiBand);
+        final String expression = "R > 300";
+        final RenderedImage roiImage = product.getMaskImage(expression, band);
+
+        final TileCache tileCache = JAI.getDefaultInstance().getTileCache();
+        tileCache.flush();
+        final DarkObjectStatistics statistics = new DarkObjectStatistics(new Band[]{band}, roiImage);
+        final DarkObjectAccumulator[] accumulators = statistics.computeAccumulators(ProgressMonitor.NULL);
+        assertTrue(getCachedTileCount(roiBand.getSourceImage()) > 0);
+
+        tileCache.flush();
+        final DarkObjectStatistics boundedStatistics = new DarkObjectStatistics(new Band[]{band}, roiImage);
+        boundedStatistics.setRoiExpressions(new String[]{expression});
+        boundedStatistics.setMemoryBudget(1);
+        final DarkObjectAccumulator[] boundedAccumulators = boundedStatistics.computeAccumulators(ProgressMonitor.NULL);
+
+        // the band referenced by the mask expression is not read through the cache either
+        assertEquals(0, getCachedTileCount(roiBand.getSourceImage()));
+        assertEquals(0, getCachedTileCount(band.getSourceImage()));
+        assertTrue(accumulators[0].getCount() > 0);
+        assertTrue(accumulators[0].getCount() < data.length);
+        assertEquals(accumulators[0].getCount(), boundedAccumulators[0].getCount());
+        for (double percentile : new double[]{0, 1, 5}) {
+            assertEquals(statistics.getDarkObjectValue(0, accumulators[0], percentile),
+                         boundedStatistics.getDarkObjectValue(0, boundedAccumulators[0], percentile), 0.0);
+        }
+    }
+
+    private static int getCachedTileCount(MultiLevelImage image) {
+        RenderedImage rendering = image.getImage(0);
+        if (rendering instanceof RenderedOp) {
+            rendering = ((RenderedOp) rendering).getRendering();
+        }
+        final TileCache tileCache = JAI.getDefaultInstance().getTileCache();
+        int count = 0;
+        for (int tileY = 0; tileY < rendering.getNumYTiles(); tileY++) {
+            for (int tileX = 0; tileX < rendering.getNumXTiles(); tileX++) {
+                if (tileCache.getTile(rendering, rendering.getMinTileX() + tileX,
+                                      rendering.getMinTileY() + tileY) != null) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
 }
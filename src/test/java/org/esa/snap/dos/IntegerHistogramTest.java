@@ -0,0 +1,48 @@
+package org.esa.snap.dos;
+
+import org.esa.snap.core.datamodel.ProductData;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IntegerHistogramTest {
+
+    @Test
+    public void testGetValueAtPercentile() {
+        final int[] values = new int[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 200 + i;
+        }
+        final IntegerHistogram histogram = IntegerHistogram.create(ProductData.TYPE_UINT16);
+        histogram.accumulate(values, values.length, null);
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(200, histogram.getValueAtPercentile(0), 0.0);
+        assertEquals(209, histogram.getValueAtPercentile(1), 0.0);
+        assertEquals(249, histogram.getValueAtPercentile(5), 0.0);
+        assertEquals(1199, histogram.getValueAtPercentile(100), 0.0);
+    }
+
+    @Test
+    public void testValidMaskAndMerge() {
+        final IntegerHistogram histogram1 = IntegerHistogram.create(ProductData.TYPE_INT16);
+        histogram1.accumulate(new int[]{-5, 7, 3}, 3, new boolean[]{false, true, true});
+        final IntegerHistogram histogram2 = IntegerHistogram.create(ProductData.TYPE_INT16);
+        histogram2.accumulate(new int[]{-2, 10}, 2, null);
+
+        histogram1.merge(histogram2);
+        assertEquals(4, histogram1.getCount());
+        assertEquals(-2, histogram1.getValueAtPercentile(0), 0.0);
+        assertEquals(3, histogram1.getValueAtPercentile(50), 0.0);
+    }
+
+    @Test
+    public void testIsSupported() {
+        assertTrue(IntegerHistogram.isSupported(ProductData.TYPE_UINT8));
+        assertTrue(IntegerHistogram.isSupported(ProductData.TYPE_UINT16));
+        assertFalse(IntegerHistogram.isSupported(ProductData.TYPE_UINT32));
+        assertFalse(IntegerHistogram.isSupported(ProductData.TYPE_FLOAT32));
+    }
+}
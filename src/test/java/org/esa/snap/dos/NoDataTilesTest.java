@@ -0,0 +1,51 @@
+package org.esa.snap.dos;
+
+import org.esa.snap.core.datamodel.Band;
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.datamodel.ProductData;
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.awt.image.RenderedImage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NoDataTilesTest {
+
+    @Test
+    public void testUpdate() {
+        final Product product = new Product("p", "t", 4, 2);
+        final Band band = product.addBand("B2", ProductData.TYPE_UINT16);
+        band.setNoDataValue(0);
+        band.setNoDataValueUsed(true);
+        band.setDataElems(new short[]{
+                0, 0, 300, 400,
+                0, 0, 700, 800
+        });
+        final RenderedImage validMaskImage = band.getValidMaskImage();
+
+        final NoDataTiles noDataTiles = new NoDataTiles();
+        final Rectangle borderRect = new Rectangle(0, 0, 2, 2);
+        final Rectangle mixedRect = new Rectangle(1, 0, 2, 2);
+        assertNull(noDataTiles.getCached(band, borderRect));
+        assertTrue(noDataTiles.update(band, borderRect, validMaskImage.getData(borderRect)));
+        assertFalse(noDataTiles.update(band, mixedRect, validMaskImage.getData(mixedRect)));
+        assertEquals(Boolean.TRUE, noDataTiles.getCached(band, borderRect));
+        assertEquals(Boolean.FALSE, noDataTiles.getCached(band, mixedRect));
+    }
+
+    @Test
+    public void testGetCached_unknownTile() {
+        final Product product = new Product("p", "t", 2, 1);
+        final Band band = product.addBand("B2", ProductData.TYPE_UINT16);
+        band.setNoDataValue(0);
+        band.setNoDataValueUsed(true);
+        band.setDataElems(new short[]{0, 0});
+
+        // tiles not recorded by a statistics pass are not evaluated
+        assertNull(new NoDataTiles().getCached(band, new Rectangle(0, 0, 2, 1)));
+    }
+}
@@ -0,0 +1,149 @@
+package org.esa.snap.dos;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QuantileSketchTest {
+
+    @Test
+    public void testLowPercentilesAreExact() {
+        final double[] values = createValues(200000);
+        final QuantileSketch sketch = new QuantileSketch();
+        for (double value : values) {
+            sketch.add(value);
+        }
+
+        final double[] sortedValues = values.clone();
+        Arrays.sort(sortedValues);
+        assertEquals(200000, sketch.getCount());
+        assertEquals(sortedValues[0], sketch.getValueAtPercentile(0), 0.0);
+        assertEquals(sortedValues[19], sketch.getValueAtPercentile(0.01), 0.0);
+        assertEquals(sortedValues[199], sketch.getValueAtPercentile(0.1), 0.0);
+        assertEquals(sortedValues[1999], sketch.getValueAtPercentile(1), 0.0);
+    }
+
+    @Test
+    public void testLowPercentilesBeyondTheTailAreWithinRelativeAccuracy() {
+        // e.g. a 0.1% percentile of a large scene, whose rank is far beyond the exact buffer
+        final double[] values = createValues(2000000);
+        final QuantileSketch sketch = new QuantileSketch(QuantileSketch.DEFAULT_RELATIVE_ACCURACY,
+                                                         QuantileSketch.DEFAULT_MAX_NUM_BUCKETS, 100);
+        for (double value : values) {
+            sketch.add(value);
+        }
+
+        final double[] sortedValues = values.clone();
+        Arrays.sort(sortedValues);
+        for (double percentile : new double[]{0.1, 1, 5, 50}) {
+            final int rank = (int) Math.ceil(percentile * values.length / 100.0);
+            assertTrue(rank > 100);
+            final double expected = sortedValues[rank - 1];
+            assertEquals(expected, sketch.getValueAtPercentile(percentile),
+                         QuantileSketch.DEFAULT_RELATIVE_ACCURACY * Math.abs(expected));
+        }
+    }
+
+    @Test
+    public void testNegativeValues() {
+        final QuantileSketch sketch = new QuantileSketch(0.01, 1000, 0);
+        final double[] values = new double[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i - 499.5;
+            sketch.add(values[i]);
+        }
+        sketch.add(0.0);
+
+        assertEquals(-499.5, sketch.getValueAtPercentile(0), 0.01 * 499.5);
+        assertEquals(-399.5, sketch.getValueAtPercentile(10), 0.01 * 399.5);
+        assertEquals(0.0, sketch.getValueAtPercentile(50), 0.0);
+        assertEquals(99.5, sketch.getValueAtPercentile(60), 0.01 * 99.5);
+    }
+
+    @Test
+    public void testMemoryIsBounded() {
+        final QuantileSketch sketch = new QuantileSketch(0.01, 64, 100);
+        final double[] values = createValues(1000000);
+        for (double value : values) {
+            sketch.add(value);
+        }
+        assertTrue(sketch.getNumBuckets() <= 128);
+        assertTrue(8L * (sketch.getNumBuckets() + 100) <= sketch.getMaxMemorySize());
+
+        final double[] sortedValues = values.clone();
+        Arrays.sort(sortedValues);
+        assertEquals(sortedValues[99], sketch.getValueAtPercentile(0.01), 0.0);
+    }
+
+    @Test
+    public void testMergedSketchesAreAccurate() {
+        final double[] values = createValues(400000);
+        final QuantileSketch sketch = mergeSketches(values, new int[]{0, 1, 2, 3},
+                                                    QuantileSketch.DEFAULT_MAX_NUM_BUCKETS);
+
+        final double[] sortedValues = values.clone();
+        Arrays.sort(sortedValues);
+        assertEquals(values.length, sketch.getCount());
+        // exact from the merged tail
+        assertEquals(sortedValues[399], sketch.getValueAtPercentile(0.1), 0.0);
+        // within the relative accuracy of the sketch
+        for (double percentile : new double[]{5, 50, 95}) {
+            final double expected = sortedValues[(int) Math.ceil(percentile * values.length / 100.0) - 1];
+            assertEquals(expected, sketch.getValueAtPercentile(percentile),
+                         QuantileSketch.DEFAULT_RELATIVE_ACCURACY * expected);
+        }
+    }
+
+    @Test
+    public void testMergeOrderDoesNotMatter() {
+        // the workers of a parallel pass finish in any order
+        final double[] values = createValues(400000);
+        // with few buckets, so that the partial sketches are collapsed differently
+        final QuantileSketch sketch1 = mergeSketches(values, new int[]{0, 1, 2, 3}, 64);
+        final QuantileSketch sketch2 = mergeSketches(values, new int[]{3, 1, 0, 2}, 64);
+        for (double percentile : new double[]{0.1, 1, 5, 50, 95}) {
+            assertEquals(sketch1.getValueAtPercentile(percentile), sketch2.getValueAtPercentile(percentile), 0.0);
+        }
+    }
+
+    @Test
+    public void testNaNValuesAreIgnored() {
+        final QuantileSketch sketch = new QuantileSketch();
+        sketch.add(Double.NaN);
+        assertEquals(0, sketch.getCount());
+        assertEquals(0.0, sketch.getValueAtPercentile(5), 0.0);
+
+        sketch.add(3.0);
+        sketch.add(Double.POSITIVE_INFINITY);
+        assertEquals(1, sketch.getCount());
+        assertEquals(3.0, sketch.getValueAtPercentile(5), 0.0);
+    }
+
+    private static QuantileSketch mergeSketches(double[] values, int[] mergeOrder, int maxNumBuckets) {
+        final QuantileSketch[] partialSketches = new QuantileSketch[mergeOrder.length];
+        for (int i = 0; i < partialSketches.length; i++) {
+            partialSketches[i] = new QuantileSketch(QuantileSketch.DEFAULT_RELATIVE_ACCURACY, maxNumBuckets, 1000);
+        }
+        for (int i = 0; i < values.length; i++) {
+            partialSketches[i % partialSketches.length].add(values[i]);
+        }
+        final QuantileSketch sketch = new QuantileSketch(QuantileSketch.DEFAULT_RELATIVE_ACCURACY, maxNumBuckets, 1000);
+        for (int i : mergeOrder) {
+            sketch.merge(partialSketches[i]);
+        }
+        return sketch;
+    }
+
+    private static double[] createValues(int count) {
+        final Random random = new Random(42);
+        final double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = 10.0 + 3.0 * random.nextGaussian();
+        }
+        return values;
+    }
+}
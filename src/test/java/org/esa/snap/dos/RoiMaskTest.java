@@ -0,0 +1,56 @@
+package org.esa.snap.dos;
+
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RoiMaskTest {
+
+    @Test
+    public void testTileBits() {
+        final BufferedImage maskImage = new BufferedImage(100, 10, BufferedImage.TYPE_BYTE_GRAY);
+        final WritableRaster raster = maskImage.getRaster();
+        for (int y = 0; y < 10; y++) {
+            for (int x = 50; x < 100; x++) {
+                raster.setSample(x, y, 0, x < 75 && y == 3 ? 0 : 255);
+            }
+        }
+        final RoiMask roiMask = new RoiMask(maskImage);
+
+        assertTrue(roiMask.getTileBits(new Rectangle(0, 0, 50, 10)).isEmpty());
+        assertTrue(roiMask.getTileBits(new Rectangle(75, 0, 25, 10)).isFull());
+
+        final RoiMask.TileBits tileBits = roiMask.getTileBits(new Rectangle(50, 0, 50, 10));
+        assertFalse(tileBits.isEmpty());
+        assertFalse(tileBits.isFull());
+        assertTrue(tileBits.get(0));
+        assertFalse(tileBits.get(3 * 50));
+        assertFalse(tileBits.get(3 * 50 + 24));
+        assertTrue(tileBits.get(3 * 50 + 25));
+        assertTrue(tileBits.get(9 * 50 + 49));
+    }
+
+    @Test
+    public void testTileBits_mappedToCoarserGrid() {
+        final BufferedImage maskImage = new BufferedImage(60, 60, BufferedImage.TYPE_BYTE_GRAY);
+        final WritableRaster raster = maskImage.getRaster();
+        for (int y = 0; y < 60; y++) {
+            for (int x = 30; x < 60; x++) {
+                raster.setSample(x, y, 0, 1);
+            }
+        }
+        // e.g. a 10 m mask applied to a 60 m band
+        final RoiMask roiMask = new RoiMask(maskImage, 10, 10);
+
+        assertTrue(roiMask.getTileBits(new Rectangle(0, 0, 5, 10)).isEmpty());
+        assertTrue(roiMask.getTileBits(new Rectangle(5, 0, 5, 10)).isFull());
+        final RoiMask.TileBits tileBits = roiMask.getTileBits(new Rectangle(0, 0, 10, 10));
+        assertFalse(tileBits.get(4));
+        assertTrue(tileBits.get(5));
+    }
+}
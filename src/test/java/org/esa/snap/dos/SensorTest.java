@@ -0,0 +1,35 @@
+package org.esa.snap.dos;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SensorTest {
+
+    @Test
+    public void testEveryBandHasAResolution() {
+        for (Sensor sensor : Sensor.values()) {
+            for (String bandName : sensor.getSpectralBands()) {
+                assertTrue(sensor.getName() + " " + bandName, sensor.getResolution(bandName) > 0);
+            }
+        }
+    }
+
+    @Test
+    public void testLandsat8OliHasTheReflectiveBandsOnly() {
+        assertArrayEquals(new String[]{"coastal_aerosol", "blue", "green", "red", "near_infrared", "swir_1", "swir_2"},
+                          Sensor.LANDSAT8_OLI.getSpectralBands());
+    }
+
+    @Test
+    public void testGetResolution() {
+        assertEquals(10, Sensor.S2_MSI.getResolution("B2"));
+        assertEquals(20, Sensor.S2_MSI.getResolution("B8A"));
+        assertEquals(60, Sensor.S2_MSI.getResolution("B10"));
+        assertEquals(30, Sensor.LANDSAT8_OLI.getResolution("swir_2"));
+        assertEquals(0, Sensor.LANDSAT8_OLI.getResolution("panchromatic"));
+        assertEquals(0, Sensor.LANDSAT_TM.getResolution("B2"));
+    }
+}